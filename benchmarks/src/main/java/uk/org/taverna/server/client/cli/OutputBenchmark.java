@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.RunStatus;
+import uk.org.taverna.server.client.Server;
+
+/**
+ * Formatting run listings and writing output data to disk.
+ * 
+ * @author Robert Haines
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+	@Param({ "65536", "16777216" })
+	public int outputSize;
+
+	private TavernaServerStub stub;
+	private RunDetails details;
+	private List<RunAttribute> fields;
+	private ServerInfo serverInfo;
+	private PrintStream devNull;
+	private byte[] output;
+	private File outputFile;
+
+	@Setup
+	public void setup() throws IOException {
+		stub = new TavernaServerStub(0);
+		stub.start();
+		Server server = Server.connect(stub.getUri());
+		Run run = server.createRun(new String(
+				WorkflowInputBenchmark.generateWorkflow(1000), "UTF-8"));
+
+		fields = Arrays.asList(RunAttribute.values());
+		details = new RunDetails(run);
+		details.set(RunAttribute.STATUS, RunStatus.FINISHED);
+		for (RunAttribute a : Arrays.asList(RunAttribute.CREATE_TIME,
+				RunAttribute.START_TIME, RunAttribute.FINISH_TIME,
+				RunAttribute.EXPIRY)) {
+			details.set(a, new Date());
+		}
+		serverInfo = new ServerInfo();
+		devNull = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+
+		output = new byte[outputSize];
+		new Random(42).nextBytes(output);
+		outputFile = File.createTempFile("benchmark", ".out");
+	}
+
+	@TearDown
+	public void tearDown() {
+		stub.stop();
+		outputFile.delete();
+	}
+
+	@Benchmark
+	public void formatHuman() {
+		serverInfo.printRun(devNull, ServerInfo.Format.HUMAN, details, fields,
+				false);
+	}
+
+	@Benchmark
+	public void formatJson() {
+		serverInfo.printRun(devNull, ServerInfo.Format.JSON, details, fields,
+				false);
+	}
+
+	@Benchmark
+	public void formatTsv() {
+		serverInfo.printRun(devNull, ServerInfo.Format.TSV, details, fields,
+				false);
+	}
+
+	@Benchmark
+	public long writeOutput() throws IOException {
+		OutputStream out = new FileOutputStream(outputFile);
+		try {
+			return RunResources.copy(new ByteArrayInputStream(output), out);
+		} finally {
+			out.close();
+		}
+	}
+}
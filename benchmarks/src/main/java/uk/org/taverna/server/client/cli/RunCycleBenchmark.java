@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.Server;
+
+/**
+ * Whole run lifecycles - create, set inputs, start, poll, fetch outputs and
+ * delete - against an in-process stub server whose runs finish immediately,
+ * so that what is measured is the client side and HTTP overhead.
+ * 
+ * @author Robert Haines
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RunCycleBenchmark {
+
+	private TavernaServerStub stub;
+	private Server server;
+	private RunPoller poller;
+	private ExecutorService downloads;
+	private String workflow;
+
+	@Setup
+	public void setup() throws IOException {
+		stub = new TavernaServerStub(0);
+		stub.setRunDuration(0);
+		stub.setRunLimit(Integer.MAX_VALUE);
+		stub.start();
+
+		server = Server.connect(stub.getUri());
+		poller = new RunPoller(1, 50);
+		downloads = Workers.newFixedThreadPool("download",
+				OutputDownloader.DEFAULT_PARALLELISM);
+		workflow = new String(WorkflowInputBenchmark.generateWorkflow(50000),
+				"UTF-8");
+	}
+
+	@TearDown
+	public void tearDown() {
+		poller.shutdown();
+		downloads.shutdown();
+		stub.stop();
+	}
+
+	@Benchmark
+	public Object runCycle() {
+		return cycle();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object runCycleConcurrent() {
+		return cycle();
+	}
+
+	@Benchmark
+	public long runCycleToDisk(Outputs outputs) throws IOException {
+		Run run = server.createRun(workflow);
+		run.setInput("in1", "benchmark input value");
+		run.start();
+		AsyncRuns.result(poller.watch(run));
+		long bytes = new OutputDownloader(outputs.directory, downloads)
+				.download(run);
+		run.delete();
+
+		return bytes;
+	}
+
+	private Object cycle() {
+		Run run = server.createRun(workflow);
+		run.setInput("in1", "benchmark input value");
+		run.start();
+		AsyncRuns.result(poller.watch(run));
+		Object output = run.getOutput("in1", false);
+		run.delete();
+
+		return output;
+	}
+
+	/**
+	 * Where runCycleToDisk writes outputs. They are deleted after each
+	 * invocation so that the directory does not grow, and skew the timings,
+	 * as the benchmark goes on.
+	 */
+	@State(Scope.Thread)
+	public static class Outputs {
+		File directory;
+
+		@Setup
+		public void setup() throws IOException {
+			directory = File.createTempFile("benchmark", "");
+			directory.delete();
+		}
+
+		@TearDown(Level.Invocation)
+		public void clean() {
+			deleteTree(directory);
+		}
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading workflows and inputs in RunWorkflow, for workflows and input lists
+ * of increasing size.
+ * 
+ * @author Robert Haines
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkflowInputBenchmark {
+
+	@Param({ "10000", "1000000", "20000000" })
+	public int workflowSize;
+
+	@Param({ "10", "1000" })
+	public int inputCount;
+
+	private File workflowFile;
+	private File inputFile;
+	private byte[] workflowBytes;
+	private RunWorkflow app;
+	private CommandLine line;
+
+	@Setup
+	public void setup() throws IOException {
+		workflowBytes = generateWorkflow(workflowSize);
+		workflowFile = File.createTempFile("benchmark", ".t2flow");
+		write(workflowFile, workflowBytes);
+		inputFile = File.createTempFile("benchmark", ".txt");
+		write(inputFile, "some input\n".getBytes("UTF-8"));
+
+		List<String> args = new ArrayList<String>();
+		args.add("-w");
+		args.add(workflowFile.getPath());
+		for (int i = 0; i < inputCount; i++) {
+			args.add("-i");
+			args.add("in" + i + ":value " + i);
+			args.add("-f");
+			args.add("file" + i + ":" + inputFile.getPath());
+		}
+		args.add("http://example.com:8080/taverna");
+
+		app = new RunWorkflow();
+		line = app.parseOpts(app.registerOptions(),
+				args.toArray(new String[args.size()]));
+	}
+
+	@TearDown
+	public void tearDown() {
+		workflowFile.delete();
+		inputFile.delete();
+		WorkflowLoader.clearCache();
+	}
+
+	@Benchmark
+	public String getWorkflow() {
+		return app.getWorkflow(line);
+	}
+
+	@Benchmark
+	public String readWorkflowFile() throws IOException {
+		return WorkflowLoader.read(workflowFile);
+	}
+
+	@Benchmark
+	public String readWorkflowStream() throws IOException {
+		return WorkflowLoader.read(new ByteArrayInputStream(workflowBytes));
+	}
+
+	@Benchmark
+	public InputSet getInputs() {
+		return app.getInputs(line);
+	}
+
+	static byte[] generateWorkflow(int size) throws IOException {
+		StringBuilder sb = new StringBuilder(size + 256);
+		sb.append("<workflow xmlns=\"http://taverna.sf.net/2008/xml/t2flow\">\n")
+				.append("<dataflow role=\"top\"><inputPorts><port><name>in1</name>")
+				.append("</port></inputPorts>\n");
+		int i = 0;
+		while (sb.length() < size) {
+			sb.append("<processor><name>p").append(i++)
+					.append("</name><annotations/></processor>\n");
+		}
+		sb.append("</dataflow></workflow>\n");
+
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -34,10 +34,12 @@ package uk.org.taverna.server.client.cli;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
-import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 
 /**
@@ -46,6 +48,9 @@ import org.apache.commons.cli.Options;
  */
 public final class AppDispatcher {
 
+	// program classes that have already been looked up
+	private static final ConcurrentMap<String, Class<?>> programs = new ConcurrentHashMap<String, Class<?>>();
+
 	/**
 	 * @param args
 	 */
@@ -63,18 +68,37 @@ public final class AppDispatcher {
 	public void run(String program, String[] args) {
 
 		try {
-			Package pack = this.getClass().getPackage();
-			Class<?> cls = Class.forName(pack.getName() + "." + program);
-			if (!cls.getSuperclass().getName()
-					.equals(pack.getName() + ".ConsoleApp")) {
-				System.out.format(
-						"Program '%s' is not a runnable program.\n\n", program);
-				AppDispatcher.printHelpAndExit(1);
+			Class<?> cls = programs.get(program);
+			if (cls == null) {
+				Package pack = this.getClass().getPackage();
+				cls = Class.forName(pack.getName() + "." + program);
+				if (!cls.getSuperclass().getName()
+						.equals(pack.getName() + ".ConsoleApp")) {
+					System.out.format(
+							"Program '%s' is not a runnable program.\n\n",
+							program);
+					AppDispatcher.printHelpAndExit(1);
+				}
+				programs.putIfAbsent(program, cls);
 			}
 
 			ConsoleApp app = (ConsoleApp) cls.getConstructor().newInstance();
-			List<Option> opts = app.registerOptions();
-			app.run(app.parseOpts(opts, args));
+			try {
+				// OptionBuilder keeps what it is building in static fields, so
+				// commands run at once by a shell take turns to build options
+				CommandLine line;
+				synchronized (OptionBuilder.class) {
+					line = app.parseOpts(app.registerOptions(), args);
+				}
+				app.run(line);
+			} finally {
+				// commands run by a shell share these with each other, so
+				// only the outermost program finishes them
+				if (!ConsoleApp.isEmbedded()) {
+					Metrics.writeReport();
+					Events.close();
+				}
+			}
 		} catch (IllegalArgumentException e) {
 			e.printStackTrace();
 		} catch (SecurityException e) {
@@ -100,10 +124,10 @@ public final class AppDispatcher {
 				+ ", and [options] are program specific. To see program "
 				+ "specific help, use:\nprogram -h";
 		String footer = "Current available programs are:\n * ServerInfo"
-				+ "\n * RunWorkflow\n * DeleteRuns";
+				+ "\n * RunWorkflow\n * DeleteRuns\n * Shell\n * LoadTest\n * Simulate";
 		HelpFormatter help = new HelpFormatter();
 		help.printHelp("program [options] server-address", header,
 				new Options(), footer);
-		System.exit(exitcode);
+		ConsoleApp.exit(exitcode);
 	}
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.RunNotFoundException;
+import uk.org.taverna.server.client.Server;
+
+/**
+ * Makes the calls that take a run from creation to deletion without waiting
+ * for them. Each call returns at once with a future for its result and is
+ * made on the layer's executor, which by default comes from {@link Workers}:
+ * virtual threads where the JVM has them and a bounded pool of ordinary
+ * threads otherwise. A callback may be given to any call to hear its outcome
+ * as soon as it is known, and can make the next call from there, so that a
+ * run is carried through its steps without a thread waiting on it in
+ * between. Waiting for a run to finish is left to a {@link RunPoller}, which
+ * works the same way.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class AsyncRuns {
+
+	static final int DEFAULT_THREADS = 16;
+
+	private final ServerPool servers;
+	private final ExecutorService executor;
+	private RunPoller poller;
+
+	/**
+	 * Make calls on the given executor. Both it and the poller are shut down
+	 * by {@link #shutdown()}. If no poller is given one with the default
+	 * intervals is made the first time a run is waited on.
+	 */
+	AsyncRuns(ServerPool servers, RunPoller poller, ExecutorService executor) {
+		this.servers = servers;
+		this.poller = poller;
+		this.executor = executor;
+	}
+
+	/**
+	 * Make up to the given number of calls at once.
+	 */
+	AsyncRuns(ServerPool servers, RunPoller poller, int threads) {
+		this(servers, poller, Workers.newFixedThreadPool("runs", threads));
+	}
+
+	AsyncRuns(ServerPool servers, int threads) {
+		this(servers, null, threads);
+	}
+
+	/**
+	 * Without a pool only {@link #listRuns(Server)} can be called.
+	 */
+	AsyncRuns(int threads) {
+		this(null, threads);
+	}
+
+	ServerPool getServers() {
+		return servers;
+	}
+
+	/**
+	 * Create a run on the server in the pool with the most room for it.
+	 */
+	Future<Run> create(String workflow) {
+		return create(workflow, new Callback<Run>());
+	}
+
+	Future<Run> create(final String workflow, Callback<? super Run> callback) {
+		return submit(new Callable<Run>() {
+			public Run call() {
+				return pool().createRun(workflow);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Set the inputs of a run, uploading any input files.
+	 * 
+	 * @return a future that completes with the run.
+	 */
+	Future<Run> setInputs(Run run, InputSet inputs, InputUploader uploader) {
+		return setInputs(run, inputs, uploader, new Callback<Run>());
+	}
+
+	Future<Run> setInputs(final Run run, final InputSet inputs,
+			final InputUploader uploader, Callback<? super Run> callback) {
+		return submit(new Callable<Run>() {
+			public Run call() throws IOException {
+				setInputs(run, new RunResources(pool().getServer(run), run),
+						inputs, uploader);
+
+				return run;
+			}
+		}, callback);
+	}
+
+	/**
+	 * @return a future that completes with the run once it has started.
+	 */
+	Future<Run> start(Run run) {
+		return start(run, new Callback<Run>());
+	}
+
+	Future<Run> start(final Run run, Callback<? super Run> callback) {
+		return submit(new Callable<Run>() {
+			public Run call() {
+				long t = Metrics.start();
+				run.start();
+				Metrics.stop("start", t);
+
+				return run;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Wait for a run to finish, on the poller.
+	 * 
+	 * @return a future that completes with the run once it has finished.
+	 */
+	Future<Run> await(Run run) {
+		return poller().watch(run);
+	}
+
+	Future<Run> await(Run run, RunPoller.Callback callback) {
+		return poller().watch(run, callback);
+	}
+
+	Future<Integer> exitCode(Run run) {
+		return exitCode(run, new Callback<Integer>());
+	}
+
+	Future<Integer> exitCode(final Run run,
+			Callback<? super Integer> callback) {
+		return submit(new Callable<Integer>() {
+			public Integer call() {
+				long t = Metrics.start();
+				int exitcode = run.getExitCode();
+				Metrics.stop("getExitCode", t);
+
+				return exitcode;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Write the outputs of a run into a directory, downloading them on the
+	 * given executor.
+	 * 
+	 * @return a future that completes with the number of bytes written.
+	 */
+	Future<Long> download(Run run, File directory, ExecutorService downloads) {
+		return download(run, directory, downloads, new Callback<Long>());
+	}
+
+	Future<Long> download(final Run run, final File directory,
+			final ExecutorService downloads, Callback<? super Long> callback) {
+		return submit(new Callable<Long>() {
+			public Long call() throws IOException {
+				return new OutputDownloader(directory, downloads).download(run);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Read the value, or reference, of each output of a run, fetching them on
+	 * the given executor.
+	 */
+	Future<Map<String, Object>> fetchOutputs(Run run, boolean refs,
+			ExecutorService downloads) {
+		return fetchOutputs(run, refs, downloads,
+				new Callback<Map<String, Object>>());
+	}
+
+	Future<Map<String, Object>> fetchOutputs(final Run run,
+			final boolean refs, final ExecutorService downloads,
+			Callback<? super Map<String, Object>> callback) {
+		return submit(new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() throws IOException {
+				return OutputDownloader.fetch(run, refs, downloads);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Delete a run from whichever server in the pool it is on.
+	 * 
+	 * @return a future that completes with false if the pool does not know
+	 *         the server of the run or the run was not there.
+	 */
+	Future<Boolean> delete(UUID uuid) {
+		return delete(uuid, new Callback<Boolean>());
+	}
+
+	Future<Boolean> delete(final UUID uuid,
+			Callback<? super Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			public Boolean call() {
+				Server server = pool().getServer(uuid);
+				if (server == null) {
+					return false;
+				}
+
+				try {
+					long t = Metrics.start();
+					server.deleteRun(uuid);
+					Metrics.stop("deleteRun", t);
+				} catch (RunNotFoundException e) {
+					return false;
+				} finally {
+					servers.deleted(uuid);
+				}
+
+				return true;
+			}
+		}, callback);
+	}
+
+	/**
+	 * List the runs on one server, which need not be in the pool.
+	 */
+	Future<Collection<Run>> listRuns(Server server) {
+		return listRuns(server, new Callback<Collection<Run>>());
+	}
+
+	Future<Collection<Run>> listRuns(final Server server,
+			Callback<? super Collection<Run>> callback) {
+		return submit(new Callable<Collection<Run>>() {
+			public Collection<Run> call() {
+				long t = Metrics.start();
+				Collection<Run> runs = server.getRuns();
+				Metrics.stop("getRuns", t);
+
+				return runs;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Take no more calls. Calls already made still complete but runs being
+	 * waited on are no longer checked.
+	 */
+	void shutdown() {
+		executor.shutdown();
+		synchronized (this) {
+			if (poller != null) {
+				poller.shutdown();
+			}
+		}
+	}
+
+	private ServerPool pool() {
+		if (servers == null) {
+			throw new IllegalStateException("No servers to make runs on");
+		}
+
+		return servers;
+	}
+
+	private synchronized RunPoller poller() {
+		if (poller == null) {
+			poller = new RunPoller();
+		}
+
+		return poller;
+	}
+
+	private <T> Future<T> submit(final Callable<T> task,
+			final Callback<? super T> callback) {
+		return executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				T result;
+				try {
+					result = task.call();
+				} catch (Exception e) {
+					callback.failed(e);
+					throw e;
+				}
+				callback.completed(result);
+
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Set the inputs of a run, uploading any input files, on this thread.
+	 */
+	static void setInputs(Run run, RunResources resources, InputSet inputs,
+			InputUploader uploader) throws IOException {
+		for (Map.Entry<String, String> e : inputs.getValues().entrySet()) {
+			long set = System.nanoTime();
+			long t = Metrics.start();
+			run.setInput(e.getKey(), e.getValue());
+			Metrics.stop("setInput", t);
+			Events.emit(Events.INPUT_SET, run.getUUID(), "port", e.getKey(),
+					"durationMillis", Events.since(set));
+		}
+
+		if (!inputs.getFiles().isEmpty()) {
+			uploader.upload(resources, inputs.getFiles());
+		}
+	}
+
+	/**
+	 * Block until a call has completed, however long that takes.
+	 * 
+	 * @throws RuntimeException
+	 *             the failure of the call, wrapped in an
+	 *             IllegalStateException if it was a checked exception.
+	 */
+	static <T> T result(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause.getMessage(), cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Hears the outcome of a call. Both methods are called on the layer's
+	 * threads so they should return quickly; they may make further calls.
+	 */
+	static class Callback<T> {
+		void completed(T result) {
+		}
+
+		void failed(Exception e) {
+		}
+	}
+}
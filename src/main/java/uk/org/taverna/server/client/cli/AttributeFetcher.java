@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import uk.org.taverna.server.client.Run;
+
+/**
+ * Fetches a chosen set of attributes for many runs at once, with a bounded
+ * number of runs being fetched at any one time. Results are handed back as
+ * soon as each run is complete, on the calling thread, so handlers do not
+ * need to be thread safe.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class AttributeFetcher {
+
+	static final int DEFAULT_PARALLELISM = 8;
+
+	private final int parallelism;
+	private final Set<RunAttribute> attributes;
+
+	AttributeFetcher(int parallelism, Collection<RunAttribute> attributes) {
+		this.parallelism = Math.max(1, parallelism);
+		this.attributes = attributes.isEmpty() ? EnumSet
+				.noneOf(RunAttribute.class) : EnumSet.copyOf(attributes);
+	}
+
+	/**
+	 * Receives runs as their attributes arrive.
+	 */
+	interface Handler {
+		void fetched(RunDetails details);
+
+		void failed(Run run, Exception e);
+	}
+
+	/**
+	 * Fetch the attributes of each run, blocking until all are done.
+	 */
+	void fetch(Collection<Run> runs, Handler handler) {
+		if (attributes.isEmpty()) {
+			for (Run run : runs) {
+				handler.fetched(new RunDetails(run));
+			}
+
+			return;
+		}
+
+		ExecutorService executor = Workers.newFixedThreadPool("fetch", Math
+				.min(parallelism, Math.max(1, runs.size())));
+		CompletionService<RunDetails> results = new ExecutorCompletionService<RunDetails>(
+				executor);
+		try {
+			for (final Run run : runs) {
+				results.submit(new Callable<RunDetails>() {
+					public RunDetails call() throws Exception {
+						try {
+							return fetch(run);
+						} catch (Exception e) {
+							throw new FetchException(run, e);
+						}
+					}
+				});
+			}
+
+			for (int i = 0; i < runs.size(); i++) {
+				try {
+					handler.fetched(results.take().get());
+				} catch (ExecutionException e) {
+					FetchException fe = (FetchException) e.getCause();
+					handler.failed(fe.run, fe.cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	RunDetails fetch(Run run) {
+		RunDetails details = new RunDetails(run);
+		for (RunAttribute a : attributes) {
+			details.set(a, a.fetch(run));
+		}
+
+		return details;
+	}
+
+	private static final class FetchException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final Run run;
+		final Exception cause;
+
+		FetchException(Run run, Exception cause) {
+			super(cause);
+			this.run = run;
+			this.cause = cause;
+		}
+	}
+}
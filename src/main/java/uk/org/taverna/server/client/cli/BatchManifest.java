@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads input sets for a batch of runs from a manifest file, one run per
+ * line. Lines are read lazily so that manifests of any size can be used.
+ * 
+ * Two formats are understood. Files ending in ".jsonl" or ".json" hold one
+ * JSON object per line, mapping port names to values. Anything else is read
+ * as CSV with a header line of port names. In both formats a port name
+ * prefixed with '@' means that its values are the names of files to use for
+ * that port, just as with the -f option. Blank lines and lines starting with
+ * '#' are ignored. A line that cannot be read gives an input set carrying
+ * the reason, in place of its inputs, so that the rest of the batch still
+ * runs.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class BatchManifest implements Iterator<InputSet>, Closeable {
+
+	static final String FILE_PREFIX = "@";
+
+	private final String name;
+	private final BufferedReader reader;
+	private final boolean json;
+	private final List<String> columns;
+
+	private InputSet next;
+	private long index;
+	private long lineNumber;
+
+	BatchManifest(File manifest) throws IOException {
+		this.name = manifest.getPath();
+		this.reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(manifest), "UTF-8"));
+		String lower = manifest.getName().toLowerCase();
+		this.json = lower.endsWith(".jsonl") || lower.endsWith(".json");
+		this.columns = new ArrayList<String>();
+		this.index = 0;
+		this.lineNumber = 0;
+
+		if (!json) {
+			String header = readLine();
+			if (header == null) {
+				throw new IOException("Manifest '" + name + "' is empty");
+			}
+			columns.addAll(splitCsv(header));
+		}
+
+		next = readNext();
+	}
+
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	public InputSet next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+
+		InputSet current = next;
+		try {
+			next = readNext();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read manifest '" + name
+					+ "': " + e.getMessage(), e);
+		}
+
+		return current;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private InputSet readNext() throws IOException {
+		String line = readLine();
+		if (line == null) {
+			return null;
+		}
+
+		InputSet inputs = new InputSet(++index);
+		try {
+			if (json) {
+				for (Map.Entry<String, Object> e : Json.parseObject(line)
+						.entrySet()) {
+					Object value = e.getValue();
+					add(inputs, e.getKey(), value == null ? "" : stringValue(
+							e.getKey(), value));
+				}
+			} else {
+				List<String> cells = splitCsv(line);
+				if (cells.size() != columns.size()) {
+					throw new IllegalArgumentException("expected "
+							+ columns.size() + " values but found "
+							+ cells.size());
+				}
+				for (int i = 0; i < cells.size(); i++) {
+					add(inputs, columns.get(i), cells.get(i));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			inputs = new InputSet(index);
+			inputs.setError("Bad manifest line " + lineNumber + " in '" + name
+					+ "': " + e.getMessage());
+		}
+
+		return inputs;
+	}
+
+	private String readLine() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.length() != 0 && !trimmed.startsWith("#")) {
+				return line;
+			}
+		}
+
+		return null;
+	}
+
+	private static void add(InputSet inputs, String port, String value) {
+		if (port.startsWith(FILE_PREFIX)) {
+			inputs.setFile(port.substring(FILE_PREFIX.length()), new File(value));
+		} else {
+			inputs.setValue(port, value);
+		}
+	}
+
+	// numbers are passed on exactly as they were written in the manifest
+	private static String stringValue(String port, Object value) {
+		if (value instanceof Map || value instanceof List) {
+			throw new IllegalArgumentException("the value of '" + port
+					+ "' must be a string, number or boolean");
+		}
+
+		return value.toString();
+	}
+
+	/**
+	 * Split a line of CSV into its cells. Cells may be quoted with '"' and a
+	 * quote inside a quoted cell is written as '""'.
+	 */
+	static List<String> splitCsv(String line) {
+		List<String> cells = new ArrayList<String>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						cell.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					cell.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				cells.add(cell.toString());
+				cell.setLength(0);
+			} else {
+				cell.append(c);
+			}
+		}
+
+		if (quoted) {
+			throw new IllegalArgumentException("unterminated quote");
+		}
+		cells.add(cell.toString());
+
+		return cells;
+	}
+}
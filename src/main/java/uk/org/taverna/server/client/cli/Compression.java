@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content encoding for transfers to and from the server. Downloads ask for
+ * gzip or deflate and are decoded as they are read. Uploads are only sent
+ * gzipped when asked for, as a server that does not decode request bodies
+ * may store the compressed bytes as they are; if the server refuses one they
+ * are sent as they are from then on. The bytes sent and received, before and
+ * after encoding, are counted so the saving can be reported.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Compression {
+
+	static final String ACCEPT_ENCODING = "gzip, deflate";
+	static final String GZIP = "gzip";
+
+	// files that are already compressed and would only get bigger
+	private static final String[] COMPRESSED = { ".gz", ".tgz", ".zip",
+			".bz2", ".xz", ".jar", ".png", ".jpg", ".jpeg", ".gif" };
+
+	private static final AtomicLong wireIn = new AtomicLong();
+	private static final AtomicLong dataIn = new AtomicLong();
+	private static final AtomicLong wireOut = new AtomicLong();
+	private static final AtomicLong dataOut = new AtomicLong();
+
+	private static volatile boolean downloads = true;
+	private static volatile boolean uploads = false;
+
+	private Compression() {
+	}
+
+	static void setDownloads(boolean compress) {
+		downloads = compress;
+	}
+
+	static void setUploads(boolean compress) {
+		uploads = compress;
+	}
+
+	/**
+	 * @return true if file should be sent gzipped.
+	 */
+	static boolean shouldCompress(File file) {
+		if (!uploads) {
+			return false;
+		}
+
+		String name = file.getName().toLowerCase();
+		for (String ext : COMPRESSED) {
+			if (name.endsWith(ext)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Ask for a compressed response, if compression is on.
+	 */
+	static void accept(HttpURLConnection conn) {
+		if (downloads) {
+			conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+		}
+	}
+
+	/**
+	 * @return the body of a response, decoded.
+	 */
+	static InputStream decode(HttpURLConnection conn) throws IOException {
+		InputStream in = new CountingInputStream(conn.getInputStream(),
+				wireIn);
+
+		String encoding = conn.getContentEncoding();
+		if (encoding != null) {
+			encoding = encoding.trim().toLowerCase();
+			if (encoding.equals(GZIP) || encoding.equals("x-gzip")) {
+				in = new GZIPInputStream(in, RunResources.BUFFER_SIZE);
+			} else if (encoding.equals("deflate")) {
+				in = new InflaterInputStream(in);
+			}
+		}
+
+		return new CountingInputStream(in, dataIn);
+	}
+
+	/**
+	 * Count the bytes written to out, which is the stream to the server.
+	 */
+	static OutputStream countWire(OutputStream out) {
+		return new CountingOutputStream(out, wireOut);
+	}
+
+	/**
+	 * Count the bytes written to out, before they are encoded.
+	 */
+	static OutputStream countData(OutputStream out) {
+		return new CountingOutputStream(out, dataOut);
+	}
+
+	/**
+	 * @return a line on the savings made, or null if nothing was compressed.
+	 */
+	static String summary() {
+		long win = wireIn.get();
+		long din = dataIn.get();
+		long wout = wireOut.get();
+		long dout = dataOut.get();
+		if (din <= win && dout <= wout) {
+			return null;
+		}
+
+		return String.format("Compression: received %d bytes as %d (%.1fx), "
+				+ "sent %d bytes as %d (%.1fx), %d bytes saved", din, win,
+				ratio(din, win), dout, wout, ratio(dout, wout), din - win
+						+ dout - wout);
+	}
+
+	private static double ratio(long data, long wire) {
+		return wire == 0 ? 1.0 : (double) data / wire;
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		private final AtomicLong counter;
+
+		CountingInputStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counter.incrementAndGet();
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				counter.addAndGet(n);
+			}
+
+			return n;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private final AtomicLong counter;
+
+		CountingOutputStream(OutputStream out, AtomicLong counter) {
+			super(out);
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			counter.incrementAndGet();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			counter.addAndGet(len);
+		}
+	}
+}
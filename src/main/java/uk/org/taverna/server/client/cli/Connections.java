@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.org.taverna.server.client.Server;
+
+/**
+ * The connection layer shared by all programs in a JVM. It recognises server
+ * addresses without having to connect to them, keeps one connected
+ * {@link Server} per address and opens the connections made by this package
+ * with its timeouts. The JVM's HTTP stack already keeps connections alive
+ * between requests; this only raises how many idle ones it keeps per server.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Connections {
+
+	static final int DEFAULT_POOL_SIZE = 20;
+	static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	static final int DEFAULT_READ_TIMEOUT = 0;
+
+	private static final ConcurrentMap<URI, Server> servers = new ConcurrentHashMap<URI, Server>();
+
+	private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private static volatile boolean configured = false;
+
+	private Connections() {
+	}
+
+	/**
+	 * Set the pool size and timeouts. Connections opened by {@link #open(URI)}
+	 * always use the latest timeouts. The pool size, and the timeouts of the
+	 * requests made by the client library itself, are JVM settings that the
+	 * JVM reads only once, so they are set by the first call only and must
+	 * come before the first connection is made.
+	 * 
+	 * @param poolSize
+	 *            the number of idle keep-alive connections to keep per server.
+	 * @param connectTimeout
+	 *            in milliseconds, 0 for no timeout.
+	 * @param readTimeout
+	 *            in milliseconds, 0 for no timeout.
+	 */
+	static synchronized void configure(int poolSize, int connectTimeout,
+			int readTimeout) {
+		Connections.connectTimeout = connectTimeout;
+		Connections.readTimeout = readTimeout;
+
+		if (!configured) {
+			// these are read by the JVM's HTTP client, once, and so also
+			// apply to the requests made by the client library itself
+			System.setProperty("sun.net.client.defaultConnectTimeout",
+					Integer.toString(connectTimeout));
+			System.setProperty("sun.net.client.defaultReadTimeout",
+					Integer.toString(readTimeout));
+			System.setProperty("http.keepAlive", "true");
+			System.setProperty("http.maxConnections",
+					Integer.toString(poolSize));
+			configured = true;
+		}
+	}
+
+	/**
+	 * @return the first argument that is a server address, without trying to
+	 *         connect to it, or null if there is none.
+	 */
+	static URI findServerAddress(String[] args) {
+		for (String arg : args) {
+			URI uri = parseServerAddress(arg);
+			if (uri != null) {
+				return uri;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return every argument that is a server address, in order and without
+	 *         repeats, without trying to connect to any of them.
+	 */
+	static List<URI> findServerAddresses(String[] args) {
+		List<URI> uris = new ArrayList<URI>();
+		for (String arg : args) {
+			URI uri = parseServerAddress(arg);
+			if (uri != null && !uris.contains(uri)) {
+				uris.add(uri);
+			}
+		}
+
+		return uris;
+	}
+
+	static URI parseServerAddress(String arg) {
+		try {
+			URI uri = new URI(arg);
+			String scheme = uri.getScheme();
+			if (scheme != null
+					&& (scheme.equalsIgnoreCase("http") || scheme
+							.equalsIgnoreCase("https"))
+					&& uri.getHost() != null) {
+				return uri;
+			}
+		} catch (URISyntaxException e) {
+			// not a URI
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return a connected server, reusing an earlier connection to the same
+	 *         address if there is one.
+	 */
+	static Server getServer(URI uri) {
+		Server server = servers.get(uri);
+		if (server == null) {
+			long t = Metrics.start();
+			server = Server.connect(uri);
+			Metrics.stop("connect", t);
+			Server existing = servers.putIfAbsent(uri, server);
+			if (existing != null) {
+				server = existing;
+			}
+		}
+
+		return server;
+	}
+
+	/**
+	 * Open a connection with the configured timeouts.
+	 */
+	static HttpURLConnection open(URI uri) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) uri.toURL()
+				.openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+
+		return conn;
+	}
+
+	/**
+	 * Read and discard the error body of a failed request so that its
+	 * connection can go back into the pool.
+	 */
+	static void discardError(HttpURLConnection conn) {
+		InputStream err = conn.getErrorStream();
+		if (err != null) {
+			try {
+				byte[] buffer = new byte[1024];
+				while (err.read(buffer) != -1) {
+					// discard
+				}
+				err.close();
+			} catch (IOException e) {
+				// the connection will not be reused
+			}
+		}
+	}
+}
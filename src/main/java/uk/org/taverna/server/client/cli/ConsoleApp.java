@@ -32,13 +32,17 @@
 
 package uk.org.taverna.server.client.cli;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
@@ -63,6 +67,14 @@ public abstract class ConsoleApp {
 	// common options
 	private final Options options;
 
+	// set when programs are run inside a long-lived process, such as Shell
+	private static volatile boolean embedded = false;
+
+	// options that change state shared by everything in the process
+	private static final String[] PROCESS_OPTIONS = { "pool-size",
+			"connect-timeout", "read-timeout", "threads", "no-compression",
+			"compress-uploads", "metrics", "events" };
+
 	ConsoleApp(String name, String usage, String extraUsage) {
 		String cols = System.getenv("COLUMNS");
 		consoleWidth = cols == null ? DEFAULT_WIDTH : Integer.parseInt(cols);
@@ -89,10 +101,58 @@ public abstract class ConsoleApp {
 		return null;
 	}
 
+	@SuppressWarnings("static-access")
 	protected CommandLine parseOpts(List<Option> opts, String[] args) {
 		// create common options
 		options.addOption("h", "help", false, "Show this help and exit");
 		options.addOption("v", "version", false, "Show the version and exit");
+		options.addOption(OptionBuilder
+				.withLongOpt("pool-size")
+				.withDescription(
+						"Keep up to N idle connections to the server open for "
+								+ "reuse. Default "
+								+ Connections.DEFAULT_POOL_SIZE).hasArg()
+				.withArgName("N").create());
+		options.addOption(OptionBuilder
+				.withLongOpt("connect-timeout")
+				.withDescription(
+						"Give up connecting to the server after MILLIS "
+								+ "milliseconds. Default "
+								+ Connections.DEFAULT_CONNECT_TIMEOUT).hasArg()
+				.withArgName("MILLIS").create());
+		options.addOption(OptionBuilder
+				.withLongOpt("read-timeout")
+				.withDescription(
+						"Give up waiting for the server to respond after MILLIS "
+								+ "milliseconds. By default there is no limit, "
+								+ "as a server can be slow to answer while "
+								+ "it is busy").hasArg()
+				.withArgName("MILLIS").create());
+		options.addOption(OptionBuilder
+				.withLongOpt("metrics")
+				.withDescription(
+						"Time each call to the server and write a summary to "
+								+ "FILE when finished: in the Prometheus text "
+								+ "format if FILE ends in .prom, otherwise as "
+								+ "JSON").hasArg().withArgName("FILE").create());
+		options.addOption(OptionBuilder
+				.withLongOpt("events")
+				.withDescription(
+						"Write each thing that happens to a run to FILE as it "
+								+ "happens, one JSON object per line")
+				.hasArg().withArgName("FILE").create());
+		options.addOption(OptionBuilder
+				.withLongOpt("threads")
+				.withDescription(
+						"What sort of threads to do work on: virtual, platform "
+								+ "or auto. Default auto, which uses virtual "
+								+ "threads on Java 21 and later").hasArg()
+				.withArgName("MODE").create());
+		options.addOption(null, "no-compression", false,
+				"Do not ask the server to compress the data it sends");
+		options.addOption(null, "compress-uploads", false,
+				"Gzip files sent to the server. Only use this if the server "
+						+ "decodes compressed requests");
 
 		// add program specific ones
 		if (opts != null) {
@@ -116,6 +176,20 @@ public abstract class ConsoleApp {
 			if (line.hasOption("v")) {
 				showVersionAndExit();
 			}
+
+			// settings for the whole process are made once, by the shell if
+			// there is one, as the commands it runs share them
+			if (isEmbedded()) {
+				for (String option : PROCESS_OPTIONS) {
+					if (line.hasOption(option)) {
+						System.out.format("Option '%s' is ignored by commands "
+								+ "run in a shell. Give it to Shell instead.\n",
+								option);
+					}
+				}
+			} else {
+				configure(line);
+			}
 		} catch (ParseException exp) {
 			System.out.println("Unexpected exception: " + exp.getMessage());
 		}
@@ -123,6 +197,70 @@ public abstract class ConsoleApp {
 		return line;
 	}
 
+	/**
+	 * Apply the options that set up the whole process.
+	 */
+	private void configure(CommandLine line) {
+		// connection options
+		Connections.configure(
+				getInt(line, "pool-size", Connections.DEFAULT_POOL_SIZE),
+				getInt(line, "connect-timeout",
+						Connections.DEFAULT_CONNECT_TIMEOUT),
+				getInt(line, "read-timeout",
+						Connections.DEFAULT_READ_TIMEOUT));
+
+		// threading option
+		if (line.hasOption("threads")) {
+			try {
+				Workers.setMode(Workers.parseMode(line.getOptionValue("threads")));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Bad option 'threads': " + e.getMessage());
+				showHelpAndExit(1);
+			}
+		}
+
+		// compression options
+		Compression.setDownloads(!line.hasOption("no-compression"));
+		Compression.setUploads(line.hasOption("compress-uploads"));
+
+		// metrics option
+		if (line.hasOption("metrics")) {
+			Metrics.enable(new File(line.getOptionValue("metrics")), name);
+		}
+
+		// events option
+		if (line.hasOption("events")) {
+			String file = line.getOptionValue("events");
+			try {
+				Events.open(new File(file));
+			} catch (IOException e) {
+				System.out.format("Cannot write events to '%s'. %s\n", file,
+						e.getMessage());
+				exit(1);
+			}
+		}
+	}
+
+	private int getInt(CommandLine line, String option, int defaultValue) {
+		if (!line.hasOption(option)) {
+			return defaultValue;
+		}
+
+		try {
+			int value = Integer.parseInt(line.getOptionValue(option));
+			if (value >= 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+
+		System.out.format("Option '%s' must be a number.\n", option);
+		showHelpAndExit(1);
+
+		return defaultValue;
+	}
+
 	protected CommandLine parseOpts(String[] args) {
 		return parseOpts(null, args);
 	}
@@ -130,34 +268,127 @@ public abstract class ConsoleApp {
 	private void showVersionAndExit() {
 		System.out.println("Taverna 2 Server Java Lib version: 0.0.3");
 		System.out.println("Taverna 2 Server REST API version: 2.2a");
-		System.exit(0);
+		exit(0);
 	}
 
 	protected void showHelpAndExit(int exitcode) {
 		String usage = this.name + " " + this.usage;
 		HelpFormatter help = new HelpFormatter();
 		help.printHelp(usage, header, options, footer);
+		exit(exitcode);
+	}
+
+	/**
+	 * Exit the program. When running embedded in a long-lived process this
+	 * only ends the current program, by throwing {@link Exit}, rather than
+	 * the whole JVM.
+	 */
+	static void exit(int exitcode) {
+		if (embedded) {
+			throw new Exit(exitcode);
+		}
+
+		Metrics.writeReport();
+		Events.close();
 		System.exit(exitcode);
 	}
 
+	static boolean isEmbedded() {
+		return embedded;
+	}
+
+	static void setEmbedded(boolean embedded) {
+		ConsoleApp.embedded = embedded;
+	}
+
+	/**
+	 * Parse a size in bytes, such as "512", "64k", "10m" or "1g". Units are
+	 * powers of 1024.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the size cannot be parsed or is negative.
+	 */
+	static long parseBytes(String value) {
+		String s = value.trim().toLowerCase();
+		long scale = 1;
+		if (s.endsWith("k")) {
+			scale = 1024;
+		} else if (s.endsWith("m")) {
+			scale = 1024 * 1024;
+		} else if (s.endsWith("g")) {
+			scale = 1024L * 1024 * 1024;
+		}
+		if (scale != 1) {
+			s = s.substring(0, s.length() - 1);
+		}
+
+		long bytes = Long.parseLong(s) * scale;
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative size '" + value + "'");
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Thrown instead of exiting the JVM when running embedded.
+	 */
+	static final class Exit extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private final int exitcode;
+
+		Exit(int exitcode) {
+			super("exit " + exitcode);
+			this.exitcode = exitcode;
+		}
+
+		int getExitCode() {
+			return exitcode;
+		}
+	}
+
 	protected Server getServer(String[] args) {
-		Server server = null;
+		URI uri = Connections.findServerAddress(args);
+		if (uri == null) {
+			showHelpAndExit(1);
+		}
 
-		for (String arg : args) {
-			try {
-				server = Server.connect(new URI(arg));
+		try {
+			return Connections.getServer(uri);
+		} catch (Exception e) {
+			System.err.format("Cannot connect to server '%s': %s\n", uri,
+					e.getMessage());
+			exit(1);
+		}
 
-				return server;
+		return null;
+	}
+
+	/**
+	 * Connect to every server address in the arguments. Servers that cannot
+	 * be reached are reported and left out; it is only an error if none can
+	 * be.
+	 */
+	protected List<Server> getServers(String[] args) {
+		List<URI> uris = Connections.findServerAddresses(args);
+		if (uris.isEmpty()) {
+			showHelpAndExit(1);
+		}
+
+		List<Server> servers = new ArrayList<Server>();
+		for (URI uri : uris) {
+			try {
+				servers.add(Connections.getServer(uri));
 			} catch (Exception e) {
-				// not a URI, or cannot connect, ignore
-				server = null;
+				System.err.format("Cannot connect to server '%s': %s\n", uri,
+						e.getMessage());
 			}
 		}
-
-		if (server == null) {
-			showHelpAndExit(1);
+		if (servers.isEmpty()) {
+			exit(1);
 		}
 
-		return server;
+		return servers;
 	}
 }
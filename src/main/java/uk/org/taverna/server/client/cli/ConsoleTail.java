@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+/**
+ * Copies the console output of a run to local streams as it is written,
+ * rather than all at once when the run has finished. Each call to
+ * {@link #poll()} fetches only the bytes written since the last one by
+ * asking for a byte range; if the server sends the whole log anyway the
+ * bytes already seen are skipped as they arrive, so they are never held in
+ * memory.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class ConsoleTail {
+
+	private final Source[] sources;
+
+	/**
+	 * @param out
+	 *            where to copy the standard output of the run.
+	 * @param err
+	 *            where to copy the standard error of the run.
+	 */
+	ConsoleTail(RunResources run, OutputStream out, OutputStream err) {
+		sources = new Source[] { new Source(run.getStdoutUri(), out),
+				new Source(run.getStderrUri(), err) };
+	}
+
+	/**
+	 * Copy anything new. Failures are not fatal; the bytes are fetched again
+	 * on the next poll.
+	 * 
+	 * @return the number of new bytes copied.
+	 */
+	synchronized long poll() {
+		long total = 0;
+		for (Source s : sources) {
+			try {
+				total += s.poll();
+			} catch (IOException e) {
+				// try again next time
+			}
+		}
+
+		return total;
+	}
+
+	private static final class Source {
+		private final URI uri;
+		private final OutputStream out;
+		private long offset;
+
+		Source(URI uri, OutputStream out) {
+			this.uri = uri;
+			this.out = out;
+			this.offset = 0;
+		}
+
+		long poll() throws IOException {
+			HttpURLConnection conn = Connections.open(uri);
+			conn.setRequestMethod("GET");
+			conn.setRequestProperty("Accept", "*/*");
+			if (offset > 0) {
+				conn.setRequestProperty("Range", "bytes=" + offset + "-");
+			}
+
+			long t = Metrics.start();
+			int code = conn.getResponseCode();
+			Metrics.stop("GET", t);
+			if (code != HttpURLConnection.HTTP_OK
+					&& code != HttpURLConnection.HTTP_PARTIAL) {
+				// 416 means nothing new; anything else means nothing yet
+				Connections.discardError(conn);
+				return 0;
+			}
+
+			InputStream in = conn.getInputStream();
+			try {
+				if (code == HttpURLConnection.HTTP_OK && !skip(in, offset)) {
+					// the log is shorter than what we've seen; it was reset
+					return 0;
+				}
+
+				long copied = RunResources.copy(in, out);
+				out.flush();
+				offset += copied;
+				Metrics.addBytesIn(copied);
+
+				return copied;
+			} finally {
+				in.close();
+			}
+		}
+
+		// skip n bytes, reading if the stream can't skip
+		private static boolean skip(InputStream in, long n) throws IOException {
+			while (n > 0) {
+				long skipped = in.skip(n);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						return false;
+					}
+					skipped = 1;
+				}
+				n -= skipped;
+			}
+
+			return true;
+		}
+	}
+}
@@ -32,15 +32,25 @@
 
 package uk.org.taverna.server.client.cli;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
 
-import uk.org.taverna.server.client.RunNotFoundException;
-import uk.org.taverna.server.client.Server;
+import uk.org.taverna.server.client.Run;
 
 /**
  * 
@@ -51,7 +61,9 @@ public final class DeleteRuns extends ConsoleApp {
 
 	private static final String NAME = "DeleteRuns";
 	private static final String USAGE = "[run-ids...]";
-	private static final String EXTRA_USAGE = "run-ids are the id numbers of the runs you want to delete.";
+	private static final String EXTRA_USAGE = "run-ids are the id numbers of the runs you want to delete. They may also be read from a file or standard input. If any of --finished, --older-than or --expires-within are given then runs are selected from those on the server, or from those listed if any are. More than one server-address may be given, in which case runs are deleted from whichever server they are on. With --watch the servers are swept for finished runs, or runs selected as above, over and over until stopped.";
+
+	private static final long DEFAULT_GRACE = 60 * 1000;
 
 	public DeleteRuns() {
 		super(NAME, USAGE, EXTRA_USAGE);
@@ -65,10 +77,60 @@ public final class DeleteRuns extends ConsoleApp {
 			deleteAll = true;
 		}
 
-		// get server address and run ids from left over arguments
+		int parallelism = RunDeleter.DEFAULT_PARALLELISM;
+		if (line.hasOption("parallel")) {
+			try {
+				parallelism = Integer.parseInt(line.getOptionValue("parallel"));
+			} catch (NumberFormatException e) {
+				parallelism = 0;
+			}
+			if (parallelism < 1) {
+				System.out.println("Option 'parallel' must be a positive number.");
+				showHelpAndExit(1);
+			}
+		}
+
+		double rate = 0;
+		if (line.hasOption("rate")) {
+			try {
+				rate = Double.parseDouble(line.getOptionValue("rate"));
+			} catch (NumberFormatException e) {
+				rate = 0;
+			}
+			if (rate <= 0) {
+				System.out.println("Option 'rate' must be a positive number.");
+				showHelpAndExit(1);
+			}
+		}
+
+		boolean dryRun = line.hasOption("dry-run");
+		RunFilter filter = getFilter(line);
+
+		long interval = 0;
+		if (line.hasOption("watch")) {
+			if (deleteAll) {
+				System.out.println("Option 'watch' cannot be used with 'all'.");
+				showHelpAndExit(1);
+			}
+			if (isEmbedded()) {
+				// it would hold one of the shell's command slots for good
+				System.out.println("Option 'watch' cannot be used in a shell "
+						+ "as it never finishes.");
+				exit(1);
+			}
+			interval = getDuration(line, "watch", 0);
+			if (interval <= 0) {
+				System.out.println("Option 'watch' must be more than 0s.");
+				showHelpAndExit(1);
+			}
+			applyGrace(filter, getDuration(line, "grace", DEFAULT_GRACE));
+		}
+
+		// get server addresses and run ids from left over arguments
 		String[] args = line.getArgs();
-		Server server = getServer(args);
+		ServerPool servers = new ServerPool(getServers(args));
 
+		List<Iterator<UUID>> sources = new ArrayList<Iterator<UUID>>();
 		ArrayList<UUID> runs = new ArrayList<UUID>();
 		for (String arg : args) {
 			try {
@@ -78,31 +140,367 @@ public final class DeleteRuns extends ConsoleApp {
 				// not a UUID, ignore
 			}
 		}
+		sources.add(runs.iterator());
+
+		// run ids may also be streamed in from a file or stdin
+		List<UuidReader> readers = new ArrayList<UuidReader>();
+		try {
+			if (line.hasOption("file")) {
+				readers.add(new UuidReader(new InputStreamReader(
+						new FileInputStream(line.getOptionValue("file")))));
+			}
+			if (line.hasOption("stdin") && !isEmbedded()) {
+				readers.add(new UuidReader(new InputStreamReader(System.in)));
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot read run ids: " + e.getMessage());
+			exit(1);
+		}
+		sources.addAll(readers);
 
 		// delete things
-		if (deleteAll) {
-			server.deleteAllRuns();
+		Iterator<UUID> targets;
+		if (!filter.isEmpty()) {
+			// select from a snapshot of the runs on the server
+			Set<UUID> restrict = null;
+			if (runs.size() != 0 || readers.size() != 0) {
+				restrict = new HashSet<UUID>();
+				for (Iterator<UUID> i = new Chain<UUID>(sources); i.hasNext();) {
+					restrict.add(i.next());
+				}
+			}
+			if (interval > 0) {
+				close(readers);
+				watch(servers, filter, restrict, parallelism, rate, interval,
+						dryRun);
+				return;
+			}
+			targets = selectRuns(servers, servers.getRuns(), filter,
+					restrict, parallelism).iterator();
+		} else if (deleteAll) {
+			if (!dryRun) {
+				servers.deleteAllRuns();
+				return;
+			}
+			List<UUID> all = new ArrayList<UUID>();
+			for (Run run : servers.getRuns()) {
+				all.add(run.getUUID());
+			}
+			targets = all.iterator();
 		} else {
-			if (runs.size() == 0) {
+			if (runs.size() == 0 && readers.size() == 0) {
 				showHelpAndExit(1);
 			}
+			if (servers.size() > 1) {
+				// find out which server each run is on
+				servers.getRuns();
+			}
+			targets = new Chain<UUID>(sources);
+		}
+
+		if (dryRun) {
+			int count = 0;
+			while (targets.hasNext()) {
+				System.out.println("Would delete " + targets.next());
+				count++;
+			}
+			System.out.format("%d runs would be deleted\n", count);
+		} else {
+			RunDeleter deleter = new RunDeleter(servers, parallelism);
+			deleter.setRate(rate);
+			deleter.delete(targets);
+		}
+
+		close(readers);
+	}
+
+	private static void close(List<UuidReader> readers) {
+		for (UuidReader r : readers) {
+			try {
+				r.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Sweep the servers for runs to delete every interval until stopped,
+	 * reporting how many of the servers' run slots are in use and how many
+	 * have been reclaimed as it goes. A run that has finished still counts
+	 * against the run limit until it is deleted.
+	 */
+	private void watch(ServerPool servers, RunFilter filter,
+			Set<UUID> restrict, int parallelism, double rate, long interval,
+			boolean dryRun) {
+		final AtomicInteger sweeps = new AtomicInteger();
+		final AtomicInteger reclaimed = new AtomicInteger();
+		if (!isEmbedded()) {
+			// report when stopped, which is usually by an interrupt
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					System.out.format("Stopped after %d sweeps, %d slots "
+							+ "reclaimed\n", sweeps.get(), reclaimed.get());
+					Metrics.writeReport();
+					Events.close();
+				}
+			});
+		}
 
-			for (UUID u : runs) {
+		System.out.format("Sweeping every %s for %s\n", Durations
+				.format(interval), filter.isFinished() ? "finished runs"
+				: "runs at least " + Durations.format(filter.getOlderThan())
+						+ " old");
+		while (true) {
+			long start = System.currentTimeMillis();
+			try {
+				sweep(servers, filter, restrict, parallelism, rate, dryRun,
+						sweeps.incrementAndGet(), reclaimed);
+			} catch (RuntimeException e) {
+				System.err.println("Sweep failed: " + e);
+			}
+
+			long wait = interval - (System.currentTimeMillis() - start);
+			if (wait > 0) {
 				try {
-					server.deleteRun(u);
-				} catch (RunNotFoundException e) {
-					System.out.println("Run '" + u + "' not found - skipping.");
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
 		}
 	}
 
+	private void sweep(ServerPool servers, RunFilter filter,
+			Set<UUID> restrict, int parallelism, double rate, boolean dryRun,
+			int sweep, AtomicInteger reclaimed) {
+		Collection<Run> snapshot = servers.getRuns();
+		int limit = servers.getRunLimit();
+		List<UUID> selected = selectRuns(servers, snapshot, filter, restrict,
+				parallelism);
+
+		int deleted = 0;
+		if (dryRun) {
+			for (UUID uuid : selected) {
+				System.out.println("Would delete " + uuid);
+			}
+		} else if (!selected.isEmpty()) {
+			RunDeleter deleter = new RunDeleter(servers, parallelism);
+			deleter.setRate(rate);
+			deleter.delete(selected.iterator());
+			deleted = deleter.getDeleted();
+		}
+
+		int inUse = snapshot.size() - deleted;
+		int total = reclaimed.addAndGet(deleted);
+		System.out.format("Sweep %d at %tT: %d of %d slots in use (%s), "
+				+ "%d reclaimed, %d in total\n", sweep, new Date(), inUse,
+				limit, limit > 0 ? String.format("%.0f%%", 100.0 * inUse
+						/ limit) : "no limit", deleted, total);
+		Events.emit(Events.SWEEP, null, "sweep", sweep, "runs", snapshot
+				.size(), "selected", selected.size(), "deleted", deleted,
+				"reclaimed", total, "inUse", inUse, "limit", limit);
+	}
+
+	/**
+	 * Keep runs found by a sweep for at least the grace period, so that
+	 * whoever made them has time to collect their outputs: finished runs
+	 * until they finished that long ago, and others until they are that old.
+	 * A longer --older-than is kept as it is.
+	 */
+	private static void applyGrace(RunFilter filter, long grace) {
+		if (filter.isEmpty()) {
+			filter.setFinished(true);
+		}
+		if (filter.isFinished()) {
+			filter.setFinishedFor(grace);
+		} else if (filter.getOlderThan() < grace) {
+			if (filter.getOlderThan() >= 0) {
+				System.out.format("Using the grace period of %s in place of "
+						+ "the shorter --older-than.\n", Durations
+						.format(grace));
+			}
+			filter.setOlderThan(grace);
+		}
+	}
+
+	private RunFilter getFilter(CommandLine line) {
+		RunFilter filter = new RunFilter();
+		filter.setFinished(line.hasOption("finished"));
+		try {
+			if (line.hasOption("older-than")) {
+				filter.setOlderThan(Durations.parse(line
+						.getOptionValue("older-than")));
+			}
+			if (line.hasOption("expires-within")) {
+				filter.setExpiresWithin(Durations.parse(line
+						.getOptionValue("expires-within")));
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		return filter;
+	}
+
+	private long getDuration(CommandLine line, String option,
+			long defaultValue) {
+		if (!line.hasOption(option)) {
+			return defaultValue;
+		}
+
+		try {
+			return Durations.parse(line.getOptionValue(option));
+		} catch (IllegalArgumentException e) {
+			System.out.format("Option '%s': %s\n", option, e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		return defaultValue;
+	}
+
+	/**
+	 * Take a snapshot of the runs on the servers and pick out those that match
+	 * the filter, fetching the attributes needed to decide concurrently.
+	 */
+	private List<UUID> selectRuns(ServerPool servers, Collection<Run> runs,
+			final RunFilter filter, Set<UUID> restrict, int parallelism) {
+		List<Run> candidates = new ArrayList<Run>();
+		for (Run run : runs) {
+			if (restrict == null || restrict.contains(run.getUUID())) {
+				candidates.add(run);
+			}
+		}
+
+		final long now = System.currentTimeMillis();
+		final List<UUID> selected = new ArrayList<UUID>();
+		new AttributeFetcher(parallelism * servers.size(),
+				filter.getRequiredAttributes())
+				.fetch(candidates, new AttributeFetcher.Handler() {
+					public void fetched(RunDetails details) {
+						if (filter.matches(details, now)) {
+							selected.add(details.getRun().getUUID());
+						}
+					}
+
+					public void failed(Run run, Exception e) {
+						System.err.format(
+								"Could not check run '%s' - skipping: %s\n",
+								run.getUUID(), e);
+					}
+				});
+		System.out.format("%d of %d runs selected\n", selected.size(),
+				candidates.size());
+
+		return selected;
+	}
+
 	@Override
+	@SuppressWarnings("static-access")
 	public List<Option> registerOptions() {
 		ArrayList<Option> opts = new ArrayList<Option>();
 
-		opts.add(new Option(null, "all", false, "Delete all runs on the server"));
+		opts.add(new Option(null, "all", false,
+				"Delete all runs on the server, or on every server given"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("parallel")
+				.withDescription(
+						"Delete up to N runs at once from each server. Default "
+								+ RunDeleter.DEFAULT_PARALLELISM).hasArg()
+				.withArgName("N").create());
+
+		opts.add(OptionBuilder.withLongOpt("file")
+				.withDescription("Read run ids to delete from FILE, one per line")
+				.hasArg().withArgName("FILE").create());
+
+		opts.add(new Option(null, "stdin", false,
+				"Read run ids to delete from standard input, one per line"));
+
+		opts.add(new Option(null, "finished", false,
+				"Only delete runs that have finished"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("older-than")
+				.withDescription(
+						"Only delete runs created more than DURATION ago, "
+								+ "e.g. 90m, 12h or 7d").hasArg()
+				.withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("expires-within")
+				.withDescription(
+						"Only delete runs that will expire within DURATION")
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("rate")
+				.withDescription(
+						"Start no more than N deletions a second, across all "
+								+ "of the servers").hasArg().withArgName("N")
+				.create());
+
+		opts.add(new Option(null, "dry-run", false,
+				"Show which runs would be deleted without deleting them"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("watch")
+				.withDescription(
+						"Keep running, sweeping the servers for runs to delete "
+								+ "every INTERVAL, e.g. 1m. Only finished runs "
+								+ "are deleted unless other criteria are given")
+				.hasArg().withArgName("INTERVAL").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("grace")
+				.withDescription(
+						"With --watch, leave finished runs alone until they "
+								+ "finished at least DURATION ago, and other "
+								+ "runs until they are at least DURATION old, "
+								+ "whichever of this and --older-than is "
+								+ "longer. Default "
+								+ Durations.format(DEFAULT_GRACE)).hasArg()
+				.withArgName("DURATION").create());
 
 		return opts;
 	}
+
+	/**
+	 * Iterates over each of a list of iterators in turn.
+	 */
+	private static final class Chain<T> implements Iterator<T> {
+		private final Iterator<Iterator<T>> iterators;
+		private Iterator<T> current;
+
+		Chain(List<Iterator<T>> iterators) {
+			this.iterators = iterators.iterator();
+			this.current = null;
+		}
+
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (!iterators.hasNext()) {
+					return false;
+				}
+				current = iterators.next();
+			}
+
+			return true;
+		}
+
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return current.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
 }
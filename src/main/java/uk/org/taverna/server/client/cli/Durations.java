@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses human friendly durations such as "90s", "15m", "2h30m" or "7d".
+ * Recognised units are ms, s, m, h, d and w. A number on its own is taken to
+ * be in seconds.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Durations {
+
+	private static final Pattern PART = Pattern
+			.compile("(\\d+)(ms|s|m|h|d|w)?");
+
+	private Durations() {
+	}
+
+	/**
+	 * @return the duration in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             if the duration cannot be parsed.
+	 */
+	static long parse(String duration) {
+		String s = duration.trim().toLowerCase();
+		if (s.length() == 0) {
+			throw new IllegalArgumentException("Empty duration");
+		}
+
+		long total = 0;
+		Matcher m = PART.matcher(s);
+		int pos = 0;
+		while (pos < s.length()) {
+			if (!m.find(pos) || m.start() != pos) {
+				throw new IllegalArgumentException("Bad duration '" + duration
+						+ "'");
+			}
+
+			long n = Long.parseLong(m.group(1));
+			String unit = m.group(2);
+			if (unit == null) {
+				if (m.end() != s.length() || pos != 0) {
+					throw new IllegalArgumentException("Bad duration '"
+							+ duration + "'");
+				}
+				unit = "s";
+			}
+			total += n * multiplier(unit);
+			pos = m.end();
+		}
+
+		return total;
+	}
+
+	static String format(long millis) {
+		if (millis % 1000 != 0) {
+			return millis + "ms";
+		}
+
+		long s = millis / 1000;
+		StringBuilder sb = new StringBuilder();
+		long[] sizes = { 86400, 3600, 60, 1 };
+		String[] units = { "d", "h", "m", "s" };
+		for (int i = 0; i < sizes.length; i++) {
+			if (s >= sizes[i]) {
+				sb.append(s / sizes[i]).append(units[i]);
+				s %= sizes[i];
+			}
+		}
+
+		return sb.length() == 0 ? "0s" : sb.toString();
+	}
+
+	private static long multiplier(String unit) {
+		if (unit.equals("ms")) {
+			return 1;
+		} else if (unit.equals("s")) {
+			return 1000;
+		} else if (unit.equals("m")) {
+			return 60 * 1000;
+		} else if (unit.equals("h")) {
+			return 60 * 60 * 1000;
+		} else if (unit.equals("d")) {
+			return 24 * 60 * 60 * 1000;
+		} else {
+			return 7 * 24 * 60 * 60 * 1000L;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes what happens to each run as a stream of JSON objects, one per line,
+ * for other programs to follow. Each event has its time, its type and the
+ * run it is about, plus fields of its own, e.g.
+ * 
+ * <pre>
+ * {"time":"2011-03-01T12:00:00.000Z","event":"started","run":"...","durationMillis":41}
+ * </pre>
+ * 
+ * The events are buffered and written out once the buffer fills or every
+ * {@value #FLUSH_INTERVAL} milliseconds, whichever comes first, rather than
+ * a line at a time. Writing events is off until {@link #open(File)} is
+ * called; until then emitting one costs no more than reading a flag.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Events {
+
+	static final String CREATED = "created";
+	static final String INPUT_SET = "input-set";
+	static final String UPLOADED = "uploaded";
+	static final String STARTED = "started";
+	static final String STATUS = "status";
+	static final String FINISHED = "finished";
+	static final String OUTPUT_WRITTEN = "output-written";
+	static final String DELETED = "deleted";
+	static final String ERROR = "error";
+	static final String SWEEP = "sweep";
+
+	static final long FLUSH_INTERVAL = 1000;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final SimpleDateFormat isoDate;
+	static {
+		isoDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		isoDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	private static volatile boolean enabled = false;
+	private static Writer out;
+	private static File target;
+	private static ScheduledExecutorService flusher;
+
+	private Events() {
+	}
+
+	/**
+	 * Start writing events to a file, replacing anything in it.
+	 */
+	static synchronized void open(File file) throws IOException {
+		close();
+
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				file), WorkflowLoader.UTF8), BUFFER_SIZE);
+		target = file;
+		flusher = new ScheduledThreadPoolExecutor(1, Workers.factory(
+				"events", true));
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		enabled = true;
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Write an event.
+	 * 
+	 * @param run
+	 *            the run it is about, or null.
+	 * @param fields
+	 *            the event's own fields, as pairs of name and value. Values
+	 *            may be numbers, booleans, null or anything else, which is
+	 *            written as a string.
+	 */
+	static void emit(String event, UUID run, Object... fields) {
+		if (!enabled) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder(128);
+		String time;
+		synchronized (isoDate) {
+			time = isoDate.format(new Date());
+		}
+		sb.append("{\"time\":\"").append(time).append("\",\"event\":")
+				.append(Json.quote(event));
+		if (run != null) {
+			sb.append(",\"run\":\"").append(run).append('"');
+		}
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			sb.append(',').append(Json.quote(fields[i].toString()))
+					.append(':');
+			Object value = fields[i + 1];
+			if (value == null || value instanceof Number
+					|| value instanceof Boolean) {
+				sb.append(value);
+			} else {
+				sb.append(Json.quote(value.toString()));
+			}
+		}
+		sb.append("}\n");
+
+		write(sb.toString());
+	}
+
+	/**
+	 * @return the milliseconds since a time taken from
+	 *         {@link System#nanoTime()}, for an event's duration.
+	 */
+	static long since(long nanoTime) {
+		return (System.nanoTime() - nanoTime) / 1000000;
+	}
+
+	private static synchronized void write(String line) {
+		if (out == null) {
+			return;
+		}
+
+		try {
+			out.write(line);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private static synchronized void flush() {
+		if (out == null) {
+			return;
+		}
+
+		try {
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	// stop writing rather than report every event that cannot be written
+	private static void fail(IOException e) {
+		System.err.println("Could not write events to '" + target + "': "
+				+ e.getMessage());
+		enabled = false;
+		try {
+			out.close();
+		} catch (IOException ex) {
+			// already reported
+		}
+		out = null;
+	}
+
+	/**
+	 * Write out any buffered events and stop.
+	 */
+	static synchronized void close() {
+		enabled = false;
+		if (flusher != null) {
+			flusher.shutdownNow();
+			flusher = null;
+		}
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.err.println("Could not write events to '" + target
+						+ "': " + e.getMessage());
+			}
+			out = null;
+		}
+	}
+}
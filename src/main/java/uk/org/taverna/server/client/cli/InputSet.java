@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of input port values and input port files for a single run.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class InputSet {
+
+	private final long index;
+	private final Map<String, String> values;
+	private final Map<String, File> files;
+	private String error;
+
+	InputSet(long index) {
+		this.index = index;
+		this.values = new LinkedHashMap<String, String>();
+		this.files = new LinkedHashMap<String, File>();
+	}
+
+	/**
+	 * @return the position of this input set in its batch manifest,
+	 *         starting at 1, or of its chunk in a scatter, starting at 0.
+	 *         Single runs always have index 0.
+	 */
+	long getIndex() {
+		return index;
+	}
+
+	Map<String, String> getValues() {
+		return values;
+	}
+
+	Map<String, File> getFiles() {
+		return files;
+	}
+
+	void setValue(String port, String value) {
+		values.put(port, value);
+	}
+
+	void setFile(String port, File file) {
+		files.put(port, file);
+	}
+
+	/**
+	 * Add an input given in the same "port:value" form as the -i option.
+	 */
+	void addValue(String spec) {
+		String[] pair = split(spec);
+		setValue(pair[0], pair[1]);
+	}
+
+	/**
+	 * Add an input given in the same "port:file" form as the -f option.
+	 */
+	void addFile(String spec) {
+		String[] pair = split(spec);
+		setFile(pair[0], new File(pair[1]));
+	}
+
+	/**
+	 * @return why this input set could not be read, or null if it was.
+	 */
+	String getError() {
+		return error;
+	}
+
+	void setError(String error) {
+		this.error = error;
+	}
+
+	boolean isEmpty() {
+		return values.isEmpty() && files.isEmpty();
+	}
+
+	private static String[] split(String spec) {
+		String[] pair = spec.trim().split(":", 2);
+		if (pair.length != 2) {
+			throw new IllegalArgumentException("Input '" + spec
+					+ "' is not of the form PORT:VALUE");
+		}
+
+		return pair;
+	}
+}
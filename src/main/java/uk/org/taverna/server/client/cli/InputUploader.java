@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads the input files of a run in parallel. Files are identified by
+ * their content so a file used by several ports of the same run is only sent
+ * to the server once, and the hashes are kept in a {@link ContentIndex} that
+ * can be shared by all of the runs in a session so that no file is read for
+ * hashing more than once.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class InputUploader {
+
+	static final int DEFAULT_PARALLELISM = 4;
+
+	private final ExecutorService executor;
+	private final ContentIndex index;
+
+	InputUploader(ExecutorService executor, ContentIndex index) {
+		this.executor = executor;
+		this.index = index;
+	}
+
+	/**
+	 * Upload the files in an input set and point their ports at them.
+	 * 
+	 * @return the number of bytes uploaded.
+	 */
+	long upload(final RunResources run, final Map<String, File> files)
+			throws IOException {
+		// work out which files are actually different
+		Map<String, File> byHash = new LinkedHashMap<String, File>();
+		final Map<String, String> remoteNames = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, File> e : files.entrySet()) {
+			String hash = index.hash(e.getValue());
+			if (!byHash.containsKey(hash)) {
+				byHash.put(hash, e.getValue());
+			}
+			remoteNames.put(e.getKey(), remoteName(hash, byHash.get(hash)));
+		}
+
+		// send each distinct file once
+		List<Future<Long>> uploads = new ArrayList<Future<Long>>();
+		for (final Map.Entry<String, File> e : byHash.entrySet()) {
+			uploads.add(executor.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					long t = System.nanoTime();
+					long bytes = run.uploadFile(remoteName(e.getKey(),
+							e.getValue()), e.getValue());
+					Events.emit(Events.UPLOADED, run.getUUID(), "file", e
+							.getValue().getPath(), "bytes", bytes,
+							"durationMillis", Events.since(t));
+
+					return bytes;
+				}
+			}));
+		}
+		long total = 0;
+		for (Future<Long> f : uploads) {
+			total += get(f);
+		}
+
+		// then point the ports at them
+		List<Future<Long>> ports = new ArrayList<Future<Long>>();
+		for (final Map.Entry<String, String> e : remoteNames.entrySet()) {
+			ports.add(executor.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					try {
+						long t = System.nanoTime();
+						run.setInputFile(e.getKey(), e.getValue());
+						Events.emit(Events.INPUT_SET, run.getUUID(), "port", e
+								.getKey(), "file", files.get(e.getKey())
+								.getPath(), "durationMillis", Events.since(t));
+					} catch (IOException ex) {
+						throw new IOException(String.format(
+								"Could not set input '%s': %s", e.getKey(),
+								ex.getMessage()));
+					}
+					return 0L;
+				}
+			}));
+		}
+		for (Future<Long> f : ports) {
+			get(f);
+		}
+
+		return total;
+	}
+
+	private static String remoteName(String hash, File file) {
+		return hash.substring(0, 12) + "-" + file.getName();
+	}
+
+	private static long get(Future<Long> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while uploading inputs");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.toString());
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for reading batch manifests and writing reports. Objects
+ * are read into ordered maps, arrays into lists, numbers into
+ * {@link Literal}s, which keep the text they were written as, and literals
+ * into their Java equivalents.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Json {
+
+	private final String text;
+	private int pos;
+
+	private Json(String text) {
+		this.text = text;
+		this.pos = 0;
+	}
+
+	static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.readValue();
+		json.skipWhitespace();
+		if (json.pos != text.length()) {
+			throw json.error("Trailing characters");
+		}
+
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> parseObject(String text) {
+		Object value = parse(text);
+		if (!(value instanceof Map)) {
+			throw new IllegalArgumentException("Not a JSON object: " + text);
+		}
+
+		return (Map<String, Object>) value;
+	}
+
+	static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+
+		return sb.toString();
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos >= text.length()) {
+			throw error("Unexpected end of input");
+		}
+
+		char c = text.charAt(pos);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return map;
+		}
+
+		while (true) {
+			skipWhitespace();
+			String key = readString();
+			skipWhitespace();
+			if (next() != ':') {
+				throw error("Expected ':'");
+			}
+			map.put(key, readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == '}') {
+				return map;
+			} else if (c != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> list = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+
+		while (true) {
+			list.add(readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				return list;
+			} else if (c != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String readString() {
+		if (next() != '"') {
+			throw error("Expected '\"'");
+		}
+
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				return sb.toString();
+			} else if (c == '\\') {
+				c = next();
+				switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > text.length()) {
+						throw error("Bad unicode escape");
+					}
+					sb.append((char) Integer.parseInt(
+							text.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default:
+					sb.append(c);
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	private Literal readNumber() {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) != -1) {
+			pos++;
+		}
+
+		if (start == pos) {
+			throw error("Unexpected character");
+		}
+
+		String number = text.substring(start, pos);
+		try {
+			new BigDecimal(number);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Bad number '" + number + "'");
+		}
+
+		return new Literal(number);
+	}
+
+	private void expect(String literal) {
+		if (!text.startsWith(literal, pos)) {
+			throw error("Expected '" + literal + "'");
+		}
+		pos += literal.length();
+	}
+
+	private char peek() {
+		return pos < text.length() ? text.charAt(pos) : 0;
+	}
+
+	private char next() {
+		if (pos >= text.length()) {
+			throw error("Unexpected end of input");
+		}
+
+		return text.charAt(pos++);
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos);
+	}
+
+	/**
+	 * A number exactly as it was written, so that reading it loses nothing:
+	 * its {@link #toString()} is its text.
+	 */
+	static final class Literal extends Number {
+		private static final long serialVersionUID = 1L;
+
+		private final String text;
+
+		Literal(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public int intValue() {
+			return new BigDecimal(text).intValue();
+		}
+
+		@Override
+		public long longValue() {
+			return new BigDecimal(text).longValue();
+		}
+
+		@Override
+		public float floatValue() {
+			return Float.parseFloat(text);
+		}
+
+		@Override
+		public double doubleValue() {
+			return Double.parseDouble(text);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear histogram of latencies in the style of
+ * HdrHistogram. Values are recorded in microseconds into buckets that are
+ * linear within each power of two, so every recorded value is held to within
+ * about 1.5% whatever its size and memory use does not grow with the number
+ * of samples. Recording is lock free and safe from many threads at once.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class LatencyHistogram {
+
+	// 2^SUB_BITS linear buckets per power of two, 1/64 relative precision
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR_LIMIT = SUB_COUNT * 2;
+
+	// enough buckets for values up to 2^42us, about 50 days
+	private static final int MAX_MAGNITUDE = 42;
+	private static final int BUCKETS = LINEAR_LIMIT
+			+ (MAX_MAGNITUDE - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong min;
+	private final AtomicLong max;
+
+	LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		min = new AtomicLong(Long.MAX_VALUE);
+		max = new AtomicLong(0);
+	}
+
+	void recordMillis(long millis) {
+		record(millis * 1000);
+	}
+
+	void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	/**
+	 * Record a latency in microseconds.
+	 */
+	void record(long micros) {
+		long v = Math.max(0, micros);
+		counts.incrementAndGet(index(v));
+		count.incrementAndGet();
+		total.addAndGet(v);
+
+		long m;
+		while (v < (m = min.get()) && !min.compareAndSet(m, v)) {
+			// retry
+		}
+		while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+			// retry
+		}
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	long getTotal() {
+		return total.get();
+	}
+
+	long getMin() {
+		return count.get() == 0 ? 0 : min.get();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	double getMean() {
+		long n = count.get();
+
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @return the value at the given percentile, in microseconds. The value
+	 *         is the highest that could have been recorded in its bucket.
+	 */
+	long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestInBucket(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * @return a one line summary of the form
+	 *         "min/mean/p50/p90/p99/max: ...", in seconds.
+	 */
+	String summary() {
+		if (count.get() == 0) {
+			return "no samples";
+		}
+
+		return String.format(
+				"min/mean/p50/p90/p99/max: %.3f/%.3f/%.3f/%.3f/%.3f/%.3f s",
+				getMin() / 1e6, getMean() / 1e6, getPercentile(50) / 1e6,
+				getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+				getMax() / 1e6);
+	}
+
+	static int index(long v) {
+		if (v < LINEAR_LIMIT) {
+			return (int) v;
+		}
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(v);
+		if (magnitude >= MAX_MAGNITUDE) {
+			return BUCKETS - 1;
+		}
+		int shift = magnitude - SUB_BITS;
+		int sub = (int) (v >> shift) - SUB_COUNT;
+
+		return LINEAR_LIMIT + (magnitude - SUB_BITS - 1) * SUB_COUNT + sub;
+	}
+
+	static long highestInBucket(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+
+		int i = index - LINEAR_LIMIT;
+		int shift = i / SUB_COUNT + 1;
+		long sub = i % SUB_COUNT + SUB_COUNT;
+
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+
+import uk.org.taverna.server.client.Run;
+
+/**
+ * Drives a server with many runs of the same workflow, either with a fixed
+ * number of runs in flight or at a fixed rate, for a set time. The latency of
+ * each phase of every run is recorded and summarised at the end.
+ * 
+ * @author Robert Haines
+ * 
+ */
+public final class LoadTest extends ConsoleApp {
+
+	private static final String NAME = "LoadTest";
+	private static final String EXTRA_USAGE = "By default one run at a time is "
+			+ "kept in flight. Use --stub to test against an in-process stub "
+			+ "server instead of server-address.";
+
+	private static final String DEFAULT_DURATION = "1m";
+
+	// runs are started at most once a nanosecond
+	private static final double MAX_RATE = 1e9;
+
+	private enum Phase {
+		CREATE("createRun", null), INPUTS("setInput/upload", null), START(
+				"start", "start"), FINISH("time-to-finish", null), OUTPUTS(
+				"output fetch", null), DELETE("delete", "delete"), TOTAL(
+				"total", null);
+
+		private final String label;
+		// the server call this phase is made of, if it is just one and it is
+		// not already timed elsewhere
+		private final String call;
+
+		private Phase(String label, String call) {
+			this.label = label;
+			this.call = call;
+		}
+	}
+
+	private final Map<Phase, LatencyHistogram> phases;
+	private final AtomicLong completed;
+	private final AtomicLong failed;
+	private final AtomicLong missed;
+
+	private ServerPool servers;
+	private String workflow;
+	private InputSet inputs;
+	private InputUploader uploader;
+	private RunPoller poller;
+
+	public LoadTest() {
+		super(NAME, null, EXTRA_USAGE);
+
+		phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+		for (Phase p : Phase.values()) {
+			phases.put(p, new LatencyHistogram());
+		}
+		completed = new AtomicLong();
+		failed = new AtomicLong();
+		missed = new AtomicLong();
+	}
+
+	@Override
+	public void run(CommandLine line) {
+		long duration = 0;
+		int concurrency = 1;
+		double rate = 0;
+		int maxInFlight = 0;
+		long stubRunTime = 1000;
+		try {
+			duration = Durations.parse(line.getOptionValue("duration",
+					DEFAULT_DURATION));
+			concurrency = Integer.parseInt(line.getOptionValue("concurrency",
+					"1"));
+			if (line.hasOption("rate")) {
+				rate = Double.parseDouble(line.getOptionValue("rate"));
+			}
+			if (line.hasOption("max-in-flight")) {
+				maxInFlight = Integer.parseInt(line
+						.getOptionValue("max-in-flight"));
+			}
+			if (line.hasOption("stub-run-time")) {
+				stubRunTime = Durations.parse(line
+						.getOptionValue("stub-run-time"));
+			}
+			if (concurrency < 1 || rate < 0 || maxInFlight < 0) {
+				throw new IllegalArgumentException(
+						"concurrency, rate and max-in-flight must be positive");
+			}
+			if (Double.isNaN(rate) || rate > MAX_RATE) {
+				throw new IllegalArgumentException("rate must be at most "
+						+ (long) MAX_RATE + " runs/s");
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad option: " + e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		workflow = null;
+		try {
+			String name = line.getOptionValue('w');
+			if (name != null && !name.equals(WorkflowLoader.STDIN)) {
+				workflow = WorkflowLoader.load(new File(name));
+			} else if (!isEmbedded()) {
+				// only wait for the end of stdin when asked to
+				workflow = name != null ? WorkflowLoader.read(System.in)
+						: WorkflowLoader.readWaiting(System.in);
+			}
+		} catch (IOException e) {
+			System.out.println("Cannot read workflow: " + e.getMessage());
+			exit(1);
+		}
+		if (workflow == null) {
+			System.out.println("No workflow provided.");
+			showHelpAndExit(1);
+		}
+
+		inputs = new InputSet(0);
+		try {
+			if (line.hasOption('i')) {
+				for (String s : line.getOptionValues('i')) {
+					inputs.addValue(s);
+				}
+			}
+			if (line.hasOption('f')) {
+				for (String s : line.getOptionValues('f')) {
+					inputs.addFile(s);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		TavernaServerStub stub = null;
+		if (line.hasOption("stub")) {
+			try {
+				stub = new TavernaServerStub(0);
+				stub.setRunDuration(stubRunTime);
+				stub.setRunLimit(Integer.MAX_VALUE);
+				stub.start();
+				servers = new ServerPool(Collections.singletonList(Connections
+						.getServer(stub.getUri())));
+				System.out.println("Started stub server at " + stub.getUri());
+			} catch (IOException e) {
+				System.out.println("Cannot start stub server: " + e.getMessage());
+				exit(1);
+			}
+		} else {
+			servers = new ServerPool(getServers(line.getArgs()));
+		}
+
+		ExecutorService uploads = Workers.newFixedThreadPool("upload",
+				InputUploader.DEFAULT_PARALLELISM);
+		uploader = new InputUploader(uploads, new ContentIndex());
+		poller = new RunPoller();
+		try {
+			long start = System.currentTimeMillis();
+			if (rate > 0) {
+				if (maxInFlight == 0) {
+					maxInFlight = Math.max(1, servers.getRunLimit());
+				}
+				System.out.format("Starting %.2f runs/s, at most %d in flight, "
+						+ "for %s\n", rate, maxInFlight,
+						Durations.format(duration));
+				runAtRate(rate, maxInFlight, duration);
+			} else {
+				System.out.format("Keeping %d runs in flight for %s\n",
+						concurrency, Durations.format(duration));
+				runConcurrently(concurrency, duration);
+			}
+			report(System.currentTimeMillis() - start);
+		} finally {
+			poller.shutdown();
+			uploads.shutdown();
+			if (stub != null) {
+				stub.stop();
+			}
+		}
+	}
+
+	private void runConcurrently(int concurrency, long duration) {
+		final long deadline = System.currentTimeMillis() + duration;
+		ExecutorService workers = Workers.newFixedThreadPool("load",
+				concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			workers.execute(new Runnable() {
+				public void run() {
+					while (System.currentTimeMillis() < deadline) {
+						cycle();
+					}
+				}
+			});
+		}
+
+		awaitTermination(workers);
+	}
+
+	private void runAtRate(double rate, int maxInFlight, long duration) {
+		final ExecutorService workers = Workers.newCachedThreadPool("load",
+				false);
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		ScheduledExecutorService ticker = new ScheduledThreadPoolExecutor(1,
+				Workers.factory("load-ticker", true));
+
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				if (!inFlight.tryAcquire()) {
+					// the server is not keeping up
+					missed.incrementAndGet();
+					return;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							cycle();
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		}, 0, (long) (1e9 / rate), TimeUnit.NANOSECONDS);
+
+		try {
+			Thread.sleep(duration);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ticker.shutdownNow();
+		awaitTermination(ticker);
+		awaitTermination(workers);
+	}
+
+	private void cycle() {
+		Run run = null;
+		boolean deleted = false;
+		Phase phase = Phase.CREATE;
+		long start = System.nanoTime();
+		long mark = start;
+		try {
+			run = servers.createRun(workflow);
+			mark = record(Phase.CREATE, mark);
+
+			phase = Phase.INPUTS;
+			AsyncRuns.setInputs(run, new RunResources(servers.getServer(run),
+					run), inputs, uploader);
+			mark = record(Phase.INPUTS, mark);
+
+			phase = Phase.START;
+			run.start();
+			mark = record(Phase.START, mark);
+
+			phase = Phase.FINISH;
+			AsyncRuns.result(poller.watch(run));
+			mark = record(Phase.FINISH, mark);
+
+			phase = Phase.OUTPUTS;
+			for (String port : run.getOutputPorts()) {
+				long t = Metrics.start();
+				run.getOutput(port, false);
+				Metrics.stop("getOutput", t);
+			}
+			mark = record(Phase.OUTPUTS, mark);
+
+			phase = Phase.DELETE;
+			run.delete();
+			deleted = true;
+			record(Phase.DELETE, mark);
+
+			record(Phase.TOTAL, start);
+			completed.incrementAndGet();
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			System.err.format("Run failed during %s: %s\n", phase.label, e);
+			if (run != null && !deleted) {
+				try {
+					run.delete();
+				} catch (Exception ex) {
+					// leave it to expire
+				}
+			}
+		} finally {
+			// stop counting it against its server either way
+			if (run != null) {
+				servers.deleted(run.getUUID());
+			}
+		}
+	}
+
+	long getCompleted() {
+		return completed.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+
+	private long record(Phase phase, long since) {
+		long now = System.nanoTime();
+		phases.get(phase).recordNanos(now - since);
+		if (phase.call != null && Metrics.isEnabled()) {
+			Metrics.stop(phase.call, since);
+		}
+
+		return now;
+	}
+
+	private void report(long elapsed) {
+		System.out.println();
+		System.out.format("%-16s %8s %10s %10s %10s %10s\n", "phase (ms)",
+				"count", "p50", "p90", "p99", "max");
+		for (Phase p : Phase.values()) {
+			LatencyHistogram h = phases.get(p);
+			System.out.format("%-16s %8d %10.1f %10.1f %10.1f %10.1f\n",
+					p.label, h.getCount(), h.getPercentile(50) / 1000.0,
+					h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0,
+					h.getMax() / 1000.0);
+		}
+
+		double seconds = elapsed / 1000.0;
+		System.out.println();
+		System.out.format("  Completed: %d runs in %.1f s\n", completed.get(),
+				seconds);
+		System.out.format(" Throughput: %.2f runs/s (%.1f runs/minute)\n",
+				completed.get() / seconds, completed.get() * 60 / seconds);
+		System.out.format("     Failed: %d\n", failed.get());
+		if (missed.get() > 0) {
+			System.out.format("     Missed: %d starts, too many runs in "
+					+ "flight\n", missed.get());
+		}
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		executor.shutdown();
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("static-access")
+	public List<Option> registerOptions() {
+		ArrayList<Option> opts = new ArrayList<Option>();
+
+		opts.add(OptionBuilder
+				.withLongOpt("workflow")
+				.withDescription(
+						"The workflow to run, or - to read it from standard input. If this is not specified then a workflow already waiting on standard input is read")
+				.hasArg().withArgName("WORKFLOW").create('w'));
+
+		opts.add(OptionBuilder.withLongOpt("input")
+				.withDescription("Set input port INPUT to VALUE").hasArg()
+				.withArgName("INPUT:VALUE").create('i'));
+
+		opts.add(OptionBuilder
+				.withLongOpt("input-file")
+				.withDescription(
+						"Set input port INPUT to use FILE for its input")
+				.hasArg().withArgName("INPUT:FILE").create('f'));
+
+		opts.add(OptionBuilder
+				.withLongOpt("duration")
+				.withDescription(
+						"How long to keep starting runs for, e.g. 30s or 10m. "
+								+ "Default " + DEFAULT_DURATION).hasArg()
+				.withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("concurrency")
+				.withDescription(
+						"Keep N runs in flight at all times. Default 1")
+				.hasArg().withArgName("N").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("rate")
+				.withDescription(
+						"Start RATE runs per second, however many are in flight, "
+								+ "instead of a fixed number at a time")
+				.hasArg().withArgName("RATE").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("max-in-flight")
+				.withDescription(
+						"With --rate, skip starting runs while N are in "
+								+ "flight. Default is the servers' run limit")
+				.hasArg().withArgName("N").create());
+
+		opts.add(new Option(null, "stub", false,
+				"Run against an in-process stub server"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("stub-run-time")
+				.withDescription(
+						"How long each run takes on the stub server. Default 1s")
+				.hasArg().withArgName("DURATION").create());
+
+		return opts;
+	}
+}
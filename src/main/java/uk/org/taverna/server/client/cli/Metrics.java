@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times calls made to the server and counts the bytes sent and received, so
+ * that a program can report where its time went. Collection is off until
+ * {@link #enable(File, String)} is called; until then timing a call costs no
+ * more than reading a flag.
+ * 
+ * Calls are timed like this:
+ * 
+ * <pre>
+ * long t = Metrics.start();
+ * Run run = server.createRun(workflow);
+ * Metrics.stop(&quot;createRun&quot;, t);
+ * </pre>
+ * 
+ * The figures are shared by the whole process, so programs run side by side
+ * in a Shell share them too.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Metrics {
+
+	private static final String PROMETHEUS_EXTENSION = ".prom";
+	private static final String PROMETHEUS_PREFIX = "t2server_cli_";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	private static final ConcurrentMap<String, LatencyHistogram> calls = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final AtomicLong bytesIn = new AtomicLong();
+	private static final AtomicLong bytesOut = new AtomicLong();
+
+	private static volatile boolean enabled = false;
+	private static File target;
+	private static String program;
+	private static long started;
+
+	private Metrics() {
+	}
+
+	/**
+	 * Start collecting. The report is written to file by
+	 * {@link #writeReport()}: in the Prometheus text format if its name ends
+	 * in ".prom" and as JSON otherwise. Anything collected before is
+	 * discarded.
+	 */
+	static synchronized void enable(File file, String programName) {
+		calls.clear();
+		bytesIn.set(0);
+		bytesOut.set(0);
+		target = file;
+		program = programName;
+		started = System.currentTimeMillis();
+		enabled = true;
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return a start time to pass to {@link #stop(String, long)}.
+	 */
+	static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record a call that began at start, as returned by {@link #start()}.
+	 */
+	static void stop(String call, long start) {
+		if (start == 0 || !enabled) {
+			return;
+		}
+
+		long nanos = System.nanoTime() - start;
+		LatencyHistogram h = calls.get(call);
+		if (h == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			h = calls.putIfAbsent(call, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		h.recordNanos(nanos);
+	}
+
+	static void addBytesIn(long bytes) {
+		if (enabled) {
+			bytesIn.addAndGet(bytes);
+		}
+	}
+
+	static void addBytesOut(long bytes) {
+		if (enabled) {
+			bytesOut.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Write the report, if collection was enabled, and stop collecting. The
+	 * file is written in full beside its target and then renamed over it, so
+	 * that readers such as node_exporter never see part of one.
+	 */
+	static synchronized void writeReport() {
+		if (!enabled) {
+			return;
+		}
+		enabled = false;
+
+		long elapsed = System.currentTimeMillis() - started;
+		Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(
+				calls);
+		File tmp = new File(target.getAbsoluteFile().getParentFile(), "."
+				+ target.getName() + ".tmp");
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(tmp), WorkflowLoader.UTF8));
+			try {
+				if (target.getName().endsWith(PROMETHEUS_EXTENSION)) {
+					writePrometheus(out, sorted, elapsed);
+				} else {
+					writeJson(out, sorted, elapsed);
+				}
+			} finally {
+				out.close();
+			}
+
+			if (!tmp.renameTo(target)
+					&& !(target.delete() && tmp.renameTo(target))) {
+				throw new IOException("Could not rename '" + tmp + "'");
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write metrics to '" + target
+					+ "': " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	private static void writeJson(PrintWriter out,
+			Map<String, LatencyHistogram> sorted, long elapsed) {
+		out.format("{\"program\":%s,\"elapsedMillis\":%d,\"bytesIn\":%d,"
+				+ "\"bytesOut\":%d,\"calls\":{", Json.quote(program), elapsed,
+				bytesIn.get(), bytesOut.get());
+
+		boolean first = true;
+		for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			out.format("%s%s:{\"count\":%d,\"totalMillis\":%s,\"minMillis\":%s,"
+					+ "\"meanMillis\":%s,\"p50Millis\":%s,\"p90Millis\":%s,"
+					+ "\"p99Millis\":%s,\"maxMillis\":%s}", first ? "" : ",",
+					Json.quote(e.getKey()), h.getCount(),
+					millis(h.getTotal()), millis(h.getMin()),
+					millis((long) h.getMean()), millis(h.getPercentile(50)),
+					millis(h.getPercentile(90)), millis(h.getPercentile(99)),
+					millis(h.getMax()));
+			first = false;
+		}
+		out.println("}}");
+	}
+
+	private static void writePrometheus(PrintWriter out,
+			Map<String, LatencyHistogram> sorted, long elapsed) {
+		String labels = "program=\"" + program + "\"";
+
+		String name = PROMETHEUS_PREFIX + "call_duration_seconds";
+		out.println("# HELP " + name + " Time taken by calls to the server.");
+		out.println("# TYPE " + name + " summary");
+		for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			String call = labels + ",call=\"" + e.getKey() + "\"";
+			for (double q : QUANTILES) {
+				out.println(name + "{" + call + ",quantile=\"" + q + "\"} "
+						+ seconds(h.getPercentile(q * 100)));
+			}
+			out.println(name + "_sum{" + call + "} " + seconds(h.getTotal()));
+			out.println(name + "_count{" + call + "} " + h.getCount());
+		}
+
+		name = PROMETHEUS_PREFIX + "call_duration_max_seconds";
+		out.println("# HELP " + name + " Longest call to the server.");
+		out.println("# TYPE " + name + " gauge");
+		for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+			out.println(name + "{" + labels + ",call=\"" + e.getKey() + "\"} "
+					+ seconds(e.getValue().getMax()));
+		}
+
+		name = PROMETHEUS_PREFIX + "bytes_total";
+		out.println("# HELP " + name + " Bytes sent to and received from the "
+				+ "server.");
+		out.println("# TYPE " + name + " counter");
+		out.println(name + "{" + labels + ",direction=\"in\"} "
+				+ bytesIn.get());
+		out.println(name + "{" + labels + ",direction=\"out\"} "
+				+ bytesOut.get());
+
+		name = PROMETHEUS_PREFIX + "elapsed_seconds";
+		out.println("# HELP " + name + " How long the program ran for.");
+		out.println("# TYPE " + name + " gauge");
+		out.println(name + "{" + labels + "} " + elapsed / 1000.0);
+	}
+
+	// LatencyHistogram works in microseconds
+	private static String millis(long micros) {
+		return Double.toString(micros / 1000.0);
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+}
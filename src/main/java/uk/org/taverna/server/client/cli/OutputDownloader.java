@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import uk.org.taverna.server.client.Run;
+
+/**
+ * Writes the outputs of a finished run into a directory, one file per output
+ * port. Ports that hold lists become directories with one entry per list
+ * item, numbered from zero. Data is streamed straight from the server to disk.
+ * 
+ * The ports are looked up in parallel and then every file is downloaded in
+ * parallel, so a run with many ports, or long lists, is not fetched one item
+ * at a time. When all are done an index, {@value #INDEX_FILE}, is written
+ * beside them giving the file and size of each item, e.g.
+ * 
+ * <pre>
+ * {"run": "...", "ports": {"out": {"file": "out", "bytes": 12},
+ *     "list": [{"file": "list/0", "bytes": 3}, ...]}}
+ * </pre>
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class OutputDownloader {
+
+	static final int DEFAULT_PARALLELISM = 4;
+	static final String INDEX_FILE = "index.json";
+
+	private final File directory;
+	private final ExecutorService executor;
+
+	OutputDownloader(File directory, ExecutorService executor) {
+		this.directory = directory;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the total number of bytes written.
+	 */
+	long download(final Run run) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create output directory '"
+					+ directory + "'");
+		}
+
+		// lay out the files and directories
+		Map<String, Object> ports = fetch(run, true, executor);
+		Map<String, Object> layout = new LinkedHashMap<String, Object>();
+		List<Item> items = new ArrayList<Item>();
+		for (Map.Entry<String, Object> e : ports.entrySet()) {
+			layout.put(e.getKey(), plan(e.getValue(),
+					new File(directory, e.getKey()), e.getKey(), items));
+		}
+
+		// then fill them in
+		List<Future<Long>> downloads = new ArrayList<Future<Long>>();
+		for (final Item item : items) {
+			downloads.add(executor.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					long t = System.nanoTime();
+					item.bytes = RunResources.download(item.uri, item.file);
+					Events.emit(Events.OUTPUT_WRITTEN, run.getUUID(), "output",
+							item.path, "file", item.file.getPath(), "bytes",
+							item.bytes, "durationMillis", Events.since(t));
+
+					return item.bytes;
+				}
+			}));
+		}
+		long total = 0;
+		for (Future<Long> f : downloads) {
+			total += get(f);
+		}
+
+		writeIndex(run, layout);
+
+		return total;
+	}
+
+	/**
+	 * Get the value of every output port of a run, in parallel.
+	 * 
+	 * @return the value of each port, in port order.
+	 */
+	static Map<String, Object> fetch(final Run run, final boolean refs,
+			ExecutorService executor) throws IOException {
+		Map<String, Future<Object>> futures = new LinkedHashMap<String, Future<Object>>();
+		for (final String port : run.getOutputPorts()) {
+			futures.put(port, executor.submit(new Callable<Object>() {
+				public Object call() {
+					long t = Metrics.start();
+					Object value = run.getOutput(port, refs);
+					Metrics.stop("getOutput", t);
+
+					return value;
+				}
+			}));
+		}
+
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Future<Object>> e : futures.entrySet()) {
+			values.put(e.getKey(), get(e.getValue()));
+		}
+
+		return values;
+	}
+
+	// make the directories for refs and list the files to download into them
+	private Object plan(Object refs, File target, String path, List<Item> items)
+			throws IOException {
+		if (refs instanceof List) {
+			if (!target.isDirectory() && !target.mkdirs()) {
+				throw new IOException("Could not create directory '" + target
+						+ "'");
+			}
+
+			List<?> list = (List<?>) refs;
+			List<Object> layout = new ArrayList<Object>(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				String name = Integer.toString(i);
+				layout.add(plan(list.get(i), new File(target, name), path
+						+ "/" + name, items));
+			}
+
+			return layout;
+		}
+
+		Item item = new Item(URI.create(refs.toString()), target, path);
+		items.add(item);
+
+		return item;
+	}
+
+	private void writeIndex(Run run, Map<String, Object> layout)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"run\": ").append(Json.quote(run.getUUID().toString()))
+				.append(", \"ports\": {");
+		boolean first = true;
+		for (Map.Entry<String, Object> e : layout.entrySet()) {
+			if (!first) {
+				sb.append(", ");
+			}
+			first = false;
+			sb.append(Json.quote(e.getKey())).append(": ");
+			appendLayout(sb, e.getValue());
+		}
+		sb.append("}}\n");
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(
+				directory, INDEX_FILE)), WorkflowLoader.UTF8);
+		try {
+			out.write(sb.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void appendLayout(StringBuilder sb, Object layout) {
+		if (layout instanceof List) {
+			sb.append('[');
+			boolean first = true;
+			for (Object o : (List<?>) layout) {
+				if (!first) {
+					sb.append(", ");
+				}
+				first = false;
+				appendLayout(sb, o);
+			}
+			sb.append(']');
+		} else {
+			Item item = (Item) layout;
+			sb.append("{\"file\": ").append(Json.quote(item.path))
+					.append(", \"bytes\": ").append(item.bytes).append('}');
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while downloading outputs");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.toString());
+		}
+	}
+
+	// one file to download
+	private static final class Item {
+		final URI uri;
+		final File file;
+		final String path;
+		volatile long bytes;
+
+		Item(URI uri, File file, String path) {
+			this.uri = uri;
+			this.file = file;
+			this.path = path;
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * A cache, kept in a local directory, of the results of workflow runs so
+ * that running exactly the same workflow with exactly the same inputs again
+ * can be answered without going to a server. Results are keyed by a hash of
+ * the workflow document, the input values, the contents of the input files
+ * (or Baclava input document) and whether Baclava output was asked for.
+ * 
+ * Each result is a sub-directory named after its key holding the console
+ * logs of the run, its outputs and a small {@value #META_FILE} file. Results
+ * are written into a temporary directory and renamed into place, so other
+ * processes sharing the cache only ever see whole results. Results older
+ * than the time to live are not used, and once the cache grows past its size
+ * limit the least recently used results are removed.
+ * 
+ * Hit, miss, store and eviction counts are kept in a {@value #STATS_FILE}
+ * file in the cache, updated under a file lock, so they cover every process
+ * using it.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class ResultCache {
+
+	static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+	static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+
+	// the parts of a result
+	static final String STDOUT = "stdout";
+	static final String STDERR = "stderr";
+	static final String BACLAVA = "baclava";
+	static final String OUTPUTS = "outputs";
+
+	private static final String META_FILE = "meta";
+	private static final String STATS_FILE = "stats";
+
+	// unfinished or half deleted results, hidden from lookups
+	private static final String TEMP_PREFIX = ".tmp-";
+	private static final String DELETE_PREFIX = ".del-";
+
+	// a temporary directory this old was left by a process that died
+	private static final long ABANDONED_AGE = 24L * 60 * 60 * 1000;
+
+	private static final String[] COUNTERS = { "hits", "misses", "stores",
+			"expired", "evicted" };
+
+	private final File directory;
+	private final long maxSize;
+	private final long ttl;
+
+	ResultCache(File directory, long maxSize, long ttl) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory '"
+					+ directory + "'");
+		}
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Work out the key of a run from everything that decides its result.
+	 */
+	static String key(String workflow, InputSet inputs, File baclavaIn,
+			boolean baclavaOut, ContentIndex index) throws IOException {
+		MessageDigest md = ContentIndex.newDigest();
+		update(md, "workflow");
+		update(md, workflow);
+
+		for (Map.Entry<String, String> e : new TreeMap<String, String>(
+				inputs.getValues()).entrySet()) {
+			update(md, "value");
+			update(md, e.getKey());
+			update(md, e.getValue());
+		}
+		for (Map.Entry<String, File> e : new TreeMap<String, File>(
+				inputs.getFiles()).entrySet()) {
+			update(md, "file");
+			update(md, e.getKey());
+			update(md, index.hash(e.getValue()));
+		}
+		if (baclavaIn != null) {
+			update(md, "baclava-in");
+			update(md, index.hash(baclavaIn));
+		}
+		if (baclavaOut) {
+			update(md, "baclava-out");
+		}
+
+		return ContentIndex.toHex(md.digest());
+	}
+
+	// length prefixed so that no two sets of fields hash the same
+	private static void update(MessageDigest md, String field) {
+		byte[] bytes = field.getBytes(WorkflowLoader.UTF8);
+		md.update(Integer.toString(bytes.length).getBytes(
+				WorkflowLoader.UTF8));
+		md.update((byte) ':');
+		md.update(bytes);
+	}
+
+	/**
+	 * Look up a result, counting the hit or miss.
+	 * 
+	 * @return the result, or null if there is none or it has expired.
+	 */
+	Entry get(String key) throws IOException {
+		File dir = new File(directory, key);
+		Properties meta = readMeta(dir);
+		if (meta == null) {
+			count("misses");
+			return null;
+		}
+
+		Entry entry = new Entry(key, dir, meta);
+		if (System.currentTimeMillis() - entry.getCreated() > ttl) {
+			remove(dir);
+			count("misses", "expired");
+			return null;
+		}
+
+		// the directory's time is when the result was last used
+		dir.setLastModified(System.currentTimeMillis());
+		count("hits");
+
+		return entry;
+	}
+
+	/**
+	 * Start writing a new result. Its parts are written into the files given
+	 * by {@link Builder#getFile(String)} and the result is added to the cache
+	 * by {@link Builder#commit(int)}.
+	 */
+	Builder create(String key) throws IOException {
+		File temp = new File(directory, TEMP_PREFIX + key + "-"
+				+ System.nanoTime());
+		if (!temp.mkdir()) {
+			throw new IOException("Could not create '" + temp + "'");
+		}
+
+		return new Builder(key, temp);
+	}
+
+	/**
+	 * Remove expired results, and then the least recently used ones until
+	 * the cache fits in its size limit.
+	 */
+	void evict() throws IOException {
+		long now = System.currentTimeMillis();
+		List<Entry> entries = new ArrayList<Entry>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File f : files) {
+			if (!f.isDirectory()) {
+				continue;
+			}
+			if (f.getName().startsWith(DELETE_PREFIX)
+					|| (f.getName().startsWith(TEMP_PREFIX) && now
+							- f.lastModified() > ABANDONED_AGE)) {
+				delete(f);
+				continue;
+			}
+
+			Properties meta = readMeta(f);
+			if (meta != null) {
+				entries.add(new Entry(f.getName(), f, meta));
+			}
+		}
+
+		// oldest use first
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Long.valueOf(a.getLastUsed()).compareTo(
+						Long.valueOf(b.getLastUsed()));
+			}
+		});
+
+		long total = 0;
+		for (Entry e : entries) {
+			total += e.getSize();
+		}
+
+		int expired = 0;
+		int evicted = 0;
+		for (Entry e : entries) {
+			if (now - e.getCreated() > ttl) {
+				expired++;
+			} else if (total > maxSize) {
+				evicted++;
+			} else {
+				continue;
+			}
+			remove(e.dir);
+			total -= e.getSize();
+		}
+
+		if (expired + evicted > 0) {
+			Properties stats = new Properties();
+			stats.setProperty("expired", Integer.toString(expired));
+			stats.setProperty("evicted", Integer.toString(evicted));
+			updateStats(stats);
+		}
+	}
+
+	/**
+	 * @return a one line account of the cache's use and size.
+	 */
+	String summary() throws IOException {
+		Properties stats = updateStats(new Properties());
+		long hits = Long.parseLong(stats.getProperty("hits", "0"));
+		long misses = Long.parseLong(stats.getProperty("misses", "0"));
+
+		int entries = 0;
+		long size = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				Properties meta = f.isDirectory() ? readMeta(f) : null;
+				if (meta != null) {
+					entries++;
+					size += new Entry(f.getName(), f, meta).getSize();
+				}
+			}
+		}
+
+		return String.format("Cache: %d hits, %d misses (%.1f%% hit rate), "
+				+ "%d stored, %d expired, %d evicted; %d results using "
+				+ "%d of %d bytes", hits, misses, hits + misses == 0 ? 0.0
+				: hits * 100.0 / (hits + misses), Long.parseLong(stats
+				.getProperty("stores", "0")), Long.parseLong(stats
+				.getProperty("expired", "0")), Long.parseLong(stats
+				.getProperty("evicted", "0")), entries, size, maxSize);
+	}
+
+	private void count(String... counters) throws IOException {
+		Properties add = new Properties();
+		for (String c : counters) {
+			add.setProperty(c, "1");
+		}
+		updateStats(add);
+	}
+
+	/**
+	 * Add to the shared counts, holding a lock on the file while doing so.
+	 * 
+	 * @return the counts after adding.
+	 */
+	private Properties updateStats(Properties add) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(directory,
+				STATS_FILE), "rw");
+		try {
+			FileLock lock = file.getChannel().lock();
+			try {
+				byte[] bytes = new byte[(int) file.length()];
+				file.readFully(bytes);
+				Properties stats = new Properties();
+				stats.load(new ByteArrayInputStream(bytes));
+				if (add.isEmpty()) {
+					return stats;
+				}
+
+				for (String c : COUNTERS) {
+					long n = Long.parseLong(stats.getProperty(c, "0"))
+							+ Long.parseLong(add.getProperty(c, "0"));
+					stats.setProperty(c, Long.toString(n));
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				stats.store(out, null);
+				file.seek(0);
+				file.setLength(0);
+				file.write(out.toByteArray());
+
+				return stats;
+			} finally {
+				lock.release();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	// null if the directory does not hold a whole result
+	private static Properties readMeta(File dir) {
+		File file = new File(dir, META_FILE);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				Properties meta = new Properties();
+				meta.load(in);
+
+				return meta;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// move the result out of sight first so it vanishes all at once
+	private void remove(File dir) throws IOException {
+		File gone = new File(directory, DELETE_PREFIX + dir.getName() + "-"
+				+ System.nanoTime());
+		if (dir.renameTo(gone)) {
+			delete(gone);
+		}
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Could not delete '" + file + "'");
+		}
+	}
+
+	/**
+	 * Read a cached output back in: the text of a file, or a list of the
+	 * values of the items in a directory.
+	 */
+	static Object readValue(File file) throws IOException {
+		File[] items = file.listFiles();
+		if (items == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = new FileInputStream(file);
+			try {
+				RunResources.copy(in, out);
+			} finally {
+				in.close();
+			}
+
+			return new String(out.toByteArray(), WorkflowLoader.UTF8);
+		}
+
+		// items are numbered from zero
+		List<Object> list = new ArrayList<Object>(items.length);
+		for (int i = 0; i < items.length; i++) {
+			list.add(readValue(new File(file, Integer.toString(i))));
+		}
+
+		return list;
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.length();
+		}
+
+		long size = 0;
+		for (File child : children) {
+			size += sizeOf(child);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Copy a file, or a directory and everything in it.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	static long copy(File from, File to) throws IOException {
+		if (from.isDirectory()) {
+			if (!to.isDirectory() && !to.mkdirs()) {
+				throw new IOException("Could not create directory '" + to
+						+ "'");
+			}
+
+			long bytes = 0;
+			String[] names = from.list();
+			Arrays.sort(names);
+			for (String name : names) {
+				bytes += copy(new File(from, name), new File(to, name));
+			}
+
+			return bytes;
+		}
+
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				return RunResources.copy(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A result in the cache.
+	 */
+	static final class Entry {
+		private final String key;
+		private final File dir;
+		private final Properties meta;
+
+		private Entry(String key, File dir, Properties meta) {
+			this.key = key;
+			this.dir = dir;
+			this.meta = meta;
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		long getCreated() {
+			return Long.parseLong(meta.getProperty("created", "0"));
+		}
+
+		long getLastUsed() {
+			return dir.lastModified();
+		}
+
+		int getExitCode() {
+			return Integer.parseInt(meta.getProperty("exitcode", "0"));
+		}
+
+		long getSize() {
+			return Long.parseLong(meta.getProperty("size", "0"));
+		}
+
+		/**
+		 * @return the file holding one part of the result, which may not
+		 *         exist.
+		 */
+		File getFile(String part) {
+			return new File(dir, part);
+		}
+	}
+
+	/**
+	 * A result being written.
+	 */
+	final class Builder {
+		private final String key;
+		private final File temp;
+
+		private Builder(String key, File temp) {
+			this.key = key;
+			this.temp = temp;
+		}
+
+		File getFile(String part) {
+			return new File(temp, part);
+		}
+
+		/**
+		 * Add the result to the cache, replacing any older result with the
+		 * same key, and make room for it.
+		 */
+		Entry commit(int exitcode) throws IOException {
+			Properties meta = new Properties();
+			meta.setProperty("created",
+					Long.toString(System.currentTimeMillis()));
+			meta.setProperty("exitcode", Integer.toString(exitcode));
+			meta.setProperty("size", Long.toString(sizeOf(temp)));
+			OutputStream out = new FileOutputStream(new File(temp, META_FILE));
+			try {
+				meta.store(out, null);
+			} finally {
+				out.close();
+			}
+
+			File dir = new File(directory, key);
+			if (dir.exists()) {
+				remove(dir);
+			}
+			if (!temp.renameTo(dir)) {
+				// another process got there first
+				delete(temp);
+			}
+			count("stores");
+			evict();
+
+			Properties stored = readMeta(dir);
+			if (stored == null) {
+				throw new IOException("Result " + key + " was removed from "
+						+ "the cache as soon as it was added");
+			}
+
+			return new Entry(key, dir, stored);
+		}
+
+		void discard() {
+			try {
+				delete(temp);
+			} catch (IOException e) {
+				// it will be cleared out later
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import uk.org.taverna.server.client.Run;
+
+/**
+ * The attributes of a run that can be fetched from the server. Each one costs
+ * a request so callers should only ask for the ones they need.
+ * 
+ * @author Robert Haines
+ * 
+ */
+enum RunAttribute {
+
+	STATUS("status", "getStatus") {
+		@Override
+		Object get(Run run) {
+			return run.getStatus();
+		}
+	},
+
+	CREATE_TIME("created", "getCreateTime") {
+		@Override
+		Object get(Run run) {
+			return run.getCreateTime();
+		}
+	},
+
+	START_TIME("started", "getStartTime") {
+		@Override
+		Object get(Run run) {
+			return run.getStartTime();
+		}
+	},
+
+	FINISH_TIME("finished", "getFinishTime") {
+		@Override
+		Object get(Run run) {
+			return run.getFinishTime();
+		}
+	},
+
+	EXPIRY("expiry", "getExpiry") {
+		@Override
+		Object get(Run run) {
+			return run.getExpiry();
+		}
+	};
+
+	private final String label;
+	private final String call;
+
+	private RunAttribute(String label, String call) {
+		this.label = label;
+		this.call = call;
+	}
+
+	abstract Object get(Run run);
+
+	/**
+	 * Read this attribute of a run from the server.
+	 */
+	Object fetch(Run run) {
+		long t = Metrics.start();
+		Object value = get(run);
+		Metrics.stop(call, t);
+
+		return value;
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	static RunAttribute forLabel(String label) {
+		for (RunAttribute a : values()) {
+			if (a.label.equalsIgnoreCase(label.trim())) {
+				return a;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown run attribute '" + label
+				+ "'");
+	}
+}
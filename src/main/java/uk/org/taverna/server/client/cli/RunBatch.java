@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.taverna.server.client.Run;
+
+/**
+ * Runs one workflow once for each of a stream of input sets, keeping a
+ * bounded number of runs in flight at any one time. Each run is placed on
+ * whichever server in the pool has the most room for it. Input sets
+ * are only taken from the stream as slots become free so the whole batch is
+ * never held in memory. If an output directory is given, the outputs of each
+ * run are written to a sub-directory of it named after the run's position in
+ * the batch.
+ * 
+ * Each run is carried from one step to the next by callbacks from
+ * {@link AsyncRuns}, so a run that is going on a server holds no thread here
+ * and the number in flight is bounded only by the servers.
+ * 
+ * If a journal is given, each step of each run is recorded in it, keyed by
+ * the run's position in the batch. Running the same batch again with the
+ * same journal then skips the input sets that are done and waits on the runs
+ * that were started, rather than creating them again.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunBatch {
+
+	private final AsyncRuns runs;
+	private final String workflow;
+	private final boolean deleteRuns;
+	private final int maxInFlight;
+	private final File outputDir;
+	private final ExecutorService downloads;
+	private final InputUploader uploader;
+
+	private final LatencyHistogram latencies;
+	private final AtomicInteger succeeded;
+	private final AtomicInteger failed;
+	private final AtomicInteger resumed;
+	private final AtomicInteger skipped;
+
+	// run slots on the servers, and the runs that are done with
+	private final Semaphore slots;
+	private final Semaphore landed;
+
+	private RunJournal journal;
+	private Map<UUID, Run> resumable;
+
+	/**
+	 * The batch shuts the layer down when it is done with it.
+	 */
+	RunBatch(AsyncRuns runs, String workflow, boolean deleteRuns,
+			int maxInFlight, File outputDir, ExecutorService downloads,
+			InputUploader uploader) {
+		this.runs = runs;
+		this.workflow = workflow;
+		this.deleteRuns = deleteRuns;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.outputDir = outputDir;
+		this.downloads = downloads;
+		this.uploader = uploader;
+
+		this.latencies = new LatencyHistogram();
+		this.succeeded = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.resumed = new AtomicInteger();
+		this.skipped = new AtomicInteger();
+		this.resumable = new HashMap<UUID, Run>();
+		this.slots = new Semaphore(this.maxInFlight);
+		this.landed = new Semaphore(0);
+	}
+
+	void setJournal(RunJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the number of runs that failed or finished with a non-zero
+	 *         exit code.
+	 */
+	int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Run the batch. Runs that are not deleted keep their run slots, so
+	 * without deletion no more input sets are run than there are slots and
+	 * the rest are counted as failed.
+	 */
+	void run(Iterator<InputSet> inputSets) {
+		int flights = 0;
+
+		System.out.format("Running batch with up to %d runs in flight\n",
+				maxInFlight);
+		long start = System.currentTimeMillis();
+		if (journal != null) {
+			findResumable();
+		}
+		try {
+			while (inputSets.hasNext()) {
+				if (deleteRuns) {
+					slots.acquireUninterruptibly();
+				} else if (!slots.tryAcquire()) {
+					refuse(inputSets);
+					break;
+				}
+				try {
+					new Flight(inputSets.next()).begin();
+				} catch (RuntimeException e) {
+					slots.release();
+					throw e;
+				}
+				flights++;
+			}
+		} catch (IllegalStateException e) {
+			// the manifest could not be read any further
+			System.err.println(e.getMessage());
+		} finally {
+			landed.acquireUninterruptibly(flights);
+			runs.shutdown();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		report(elapsed);
+	}
+
+	// the servers are full of kept runs, so the rest cannot be run
+	private void refuse(Iterator<InputSet> inputSets) {
+		int rest = 0;
+		while (inputSets.hasNext()) {
+			inputSets.next();
+			rest++;
+		}
+		failed.addAndGet(rest);
+		System.err.format("%d input sets not run: the batch is larger than "
+				+ "the %d run slots on the server%s and its runs are kept. "
+				+ "Give -D to delete each run once it is done.\n", rest,
+				maxInFlight, runs.getServers().size() > 1 ? "s" : "");
+	}
+
+	// look up the runs left unfinished last time in one go
+	private void findResumable() {
+		Collection<RunJournal.Entry> unfinished = journal.getUnfinished();
+		if (unfinished.isEmpty()) {
+			return;
+		}
+
+		ServerPool servers = runs.getServers();
+		Map<UUID, Run> byId = new HashMap<UUID, Run>();
+		for (Run run : servers.getRuns()) {
+			byId.put(run.getUUID(), run);
+		}
+		for (RunJournal.Entry e : unfinished) {
+			Run run = byId.get(e.getUuid());
+			if (run != null) {
+				resumable.put(e.getUuid(), run);
+			}
+		}
+		System.out.format("Journal has %d unfinished runs, %d still on the "
+				+ "server%s\n", unfinished.size(), resumable.size(),
+				servers.size() > 1 ? "s" : "");
+	}
+
+	private void report(long elapsed) {
+		int total = succeeded.get() + failed.get();
+		double minutes = elapsed / 60000.0;
+
+		System.out.println("Batch complete");
+		System.out.format("       Runs: %d (%d succeeded, %d failed)\n", total,
+				succeeded.get(), failed.get());
+		if (journal != null) {
+			System.out.format("    Resumed: %d runs, %d already done\n",
+					resumed.get(), skipped.get());
+		}
+		System.out.format("    Elapsed: %.3f s\n", elapsed / 1000.0);
+		System.out.format(" Throughput: %.2f runs/minute\n",
+				minutes > 0 ? total / minutes : 0.0);
+		System.out.format("    Latency: %s\n", latencies.summary());
+		String compression = Compression.summary();
+		if (compression != null) {
+			System.out.println(compression);
+		}
+	}
+
+	/**
+	 * One input set on its way through the steps of its run, from creation
+	 * to deletion. Each step is started by the callback of the one before.
+	 * The run slot taken for it is given back once the run is deleted, or
+	 * at once if no run was made.
+	 */
+	private final class Flight {
+		private final InputSet inputs;
+		private final String key;
+		private final long start;
+		private Run run;
+
+		Flight(InputSet inputs) {
+			this.inputs = inputs;
+			this.key = Long.toString(inputs.getIndex());
+			this.start = System.currentTimeMillis();
+		}
+
+		void begin() {
+			if (inputs.getError() != null) {
+				failed.incrementAndGet();
+				System.err.format("Run %d failed: %s\n", inputs.getIndex(),
+						inputs.getError());
+				Events.emit(Events.ERROR, null, "index", inputs.getIndex(),
+						"message", inputs.getError());
+				land();
+				return;
+			}
+
+			RunJournal.Entry entry = journal == null ? null : journal.get(key);
+			if (entry != null) {
+				if (entry.getPhase() == RunJournal.Phase.DONE) {
+					skipped.incrementAndGet();
+					land();
+					return;
+				}
+
+				Run previous = resumable.get(entry.getUuid());
+				if (previous != null) {
+					if (entry.getPhase() == RunJournal.Phase.STARTED) {
+						run = previous;
+						resumed.incrementAndGet();
+						System.out.format("Run %d (%s) resumed\n", inputs
+								.getIndex(), run.getUUID());
+						await();
+					} else {
+						// its inputs may be half set, so start again
+						final UUID uuid = previous.getUUID();
+						runs.delete(uuid, new Step<Boolean>() {
+							@Override
+							void next(Boolean deleted) {
+								Events.emit(Events.DELETED, uuid, "index",
+										inputs.getIndex());
+								create();
+							}
+						});
+					}
+					return;
+				}
+			}
+
+			create();
+		}
+
+		private void create() {
+			final long created = System.nanoTime();
+			runs.create(workflow, new Step<Run>() {
+				@Override
+				void next(Run result) throws IOException {
+					run = result;
+					Events.emit(Events.CREATED, run.getUUID(), "index", inputs
+							.getIndex(), "server", runs.getServers()
+							.getServer(run).getUri(), "durationMillis", Events
+							.since(created));
+					if (journal != null) {
+						journal.record(key, run.getUUID(),
+								RunJournal.Phase.CREATED);
+					}
+					runs.setInputs(run, inputs, uploader, new Step<Run>() {
+						@Override
+						void next(Run result) {
+							start();
+						}
+					});
+				}
+			});
+		}
+
+		private void start() {
+			final long started = System.nanoTime();
+			runs.start(run, new Step<Run>() {
+				@Override
+				void next(Run result) throws IOException {
+					Events.emit(Events.STARTED, run.getUUID(), "index", inputs
+							.getIndex(), "durationMillis", Events
+							.since(started));
+					if (journal != null) {
+						journal.record(key, run.getUUID(),
+								RunJournal.Phase.STARTED);
+					}
+					await();
+				}
+			});
+		}
+
+		private void await() {
+			runs.await(run, new RunPoller.Callback() {
+				@Override
+				void finished(Run run) {
+					finish();
+				}
+
+				@Override
+				void failed(Run run, Exception e) {
+					fail(e);
+				}
+			});
+		}
+
+		private void finish() {
+			runs.exitCode(run, new Step<Integer>() {
+				@Override
+				void next(final Integer exitcode) throws IOException {
+					if (exitcode != 0 || outputDir == null) {
+						done(exitcode);
+						return;
+					}
+
+					runs.download(run, new File(outputDir, key), downloads,
+							new Step<Long>() {
+								@Override
+								void next(Long bytes) throws IOException {
+									done(exitcode);
+								}
+							});
+				}
+			});
+		}
+
+		private void done(int exitcode) throws IOException {
+			if (journal != null) {
+				journal.record(key, run.getUUID(), RunJournal.Phase.DONE);
+			}
+
+			long latency = System.currentTimeMillis() - start;
+			latencies.recordMillis(latency);
+			if (exitcode == 0) {
+				succeeded.incrementAndGet();
+			} else {
+				failed.incrementAndGet();
+			}
+			System.out.format(
+					"Run %d (%s) finished with exit code %d in %.3fs\n",
+					inputs.getIndex(), run.getUUID(), exitcode,
+					latency / 1000.0);
+			Events.emit(Events.FINISHED, run.getUUID(), "index", inputs
+					.getIndex(), "exitcode", exitcode, "durationMillis",
+					latency);
+			land();
+		}
+
+		private void fail(Exception e) {
+			failed.incrementAndGet();
+			System.err.format("Run %d failed: %s\n", inputs.getIndex(), e);
+			Events.emit(Events.ERROR, run == null ? null : run.getUUID(),
+					"index", inputs.getIndex(), "message", e.toString());
+			land();
+		}
+
+		// delete the run if asked to, then give back its slot
+		private void land() {
+			if (run == null) {
+				free();
+				return;
+			}
+			if (!deleteRuns) {
+				// the run is kept, and so is its slot
+				landed.release();
+				return;
+			}
+
+			runs.delete(run.getUUID(), new AsyncRuns.Callback<Boolean>() {
+				@Override
+				void completed(Boolean deleted) {
+					Events.emit(Events.DELETED, run.getUUID(), "index",
+							inputs.getIndex());
+					free();
+				}
+
+				@Override
+				void failed(Exception e) {
+					System.err.format("Could not delete run %s: %s\n", run
+							.getUUID(), e);
+					free();
+				}
+			});
+		}
+
+		private void free() {
+			slots.release();
+			landed.release();
+		}
+
+		/**
+		 * Goes on to the next step, or lands the run if this one failed.
+		 */
+		private abstract class Step<T> extends AsyncRuns.Callback<T> {
+			@Override
+			void completed(T result) {
+				try {
+					next(result);
+				} catch (Exception e) {
+					fail(e);
+				}
+			}
+
+			@Override
+			void failed(Exception e) {
+				fail(e);
+			}
+
+			abstract void next(T result) throws Exception;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes a stream of runs from the servers in a pool with a bounded number
+ * of deletions in flight per server, reporting progress as it goes. Runs the
+ * pool does not know the server of are skipped. The deletions are made
+ * through {@link AsyncRuns}, each giving back its slot from its callback.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunDeleter {
+
+	static final int DEFAULT_PARALLELISM = 4;
+
+	private static final long PROGRESS_INTERVAL = 1000;
+
+	private final ServerPool servers;
+	private final int parallelism;
+	private long gap;
+
+	private final AtomicInteger deleted;
+	private final AtomicInteger missing;
+	private final AtomicInteger failed;
+	private long startTime;
+
+	RunDeleter(ServerPool servers, int parallelism) {
+		this.servers = servers;
+		this.parallelism = Math.max(1, parallelism) * servers.size();
+
+		this.deleted = new AtomicInteger();
+		this.missing = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.gap = 0;
+	}
+
+	/**
+	 * Start no more than this many deletions a second, across all of the
+	 * servers. Zero, the default, is no limit.
+	 */
+	void setRate(double perSecond) {
+		this.gap = perSecond > 0 ? (long) (1000000000 / perSecond) : 0;
+	}
+
+	void delete(Iterator<UUID> runs) {
+		AsyncRuns async = new AsyncRuns(servers, parallelism);
+		ScheduledExecutorService progress = new ScheduledThreadPoolExecutor(1,
+				Workers.factory("delete-progress", true));
+		final Semaphore slots = new Semaphore(parallelism);
+
+		startTime = System.currentTimeMillis();
+		try {
+			progress.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					System.out.println("Progress: " + counts());
+				}
+			}, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+
+			long next = System.nanoTime();
+			while (runs.hasNext()) {
+				slots.acquireUninterruptibly();
+				next = pace(next);
+				UUID uuid;
+				try {
+					uuid = runs.next();
+				} catch (RuntimeException e) {
+					slots.release();
+					throw e;
+				}
+				deleteOne(async, uuid, slots);
+			}
+		} catch (IllegalStateException e) {
+			// the run ids could not be read any further
+			System.err.println(e.getMessage());
+		} finally {
+			// every slot is free again once the last deletion is done
+			slots.acquireUninterruptibly(parallelism);
+			async.shutdown();
+			progress.shutdownNow();
+		}
+
+		System.out.println("Finished: " + counts());
+	}
+
+	/**
+	 * Wait, if need be, until the time of the next deletion allowed by the
+	 * rate limit.
+	 * 
+	 * @return the earliest time of the one after.
+	 */
+	private long pace(long next) {
+		if (gap == 0) {
+			return next;
+		}
+
+		long now = System.nanoTime();
+		if (next > now) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(next - now);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			now = next;
+		}
+
+		return now + gap;
+	}
+
+	int getDeleted() {
+		return deleted.get();
+	}
+
+	int getMissing() {
+		return missing.get();
+	}
+
+	int getFailed() {
+		return failed.get();
+	}
+
+	private void deleteOne(AsyncRuns async, final UUID uuid,
+			final Semaphore slots) {
+		final long started = System.nanoTime();
+		async.delete(uuid, new AsyncRuns.Callback<Boolean>() {
+			@Override
+			void completed(Boolean found) {
+				if (found) {
+					deleted.incrementAndGet();
+					Events.emit(Events.DELETED, uuid, "durationMillis", Events
+							.since(started));
+				} else {
+					missing.incrementAndGet();
+					System.out.println("Run '" + uuid
+							+ "' not found - skipping.");
+				}
+				slots.release();
+			}
+
+			@Override
+			void failed(Exception e) {
+				failed.incrementAndGet();
+				System.err.format("Could not delete run '%s': %s\n", uuid, e);
+				Events.emit(Events.ERROR, uuid, "phase", "delete", "message",
+						e.toString());
+				slots.release();
+			}
+		});
+	}
+
+	private String counts() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+		return String.format(
+				"%d deleted, %d skipped, %d failed in %.1f s (%.1f deletions/s)",
+				deleted.get(), missing.get(), failed.get(), elapsed / 1000.0,
+				deleted.get() * 1000.0 / elapsed);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.RunStatus;
+
+/**
+ * A run along with those of its attributes that have been fetched from the
+ * server.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunDetails {
+
+	private final Run run;
+	private final Map<RunAttribute, Object> attributes;
+
+	RunDetails(Run run) {
+		this.run = run;
+		this.attributes = new EnumMap<RunAttribute, Object>(RunAttribute.class);
+	}
+
+	Run getRun() {
+		return run;
+	}
+
+	void set(RunAttribute attribute, Object value) {
+		attributes.put(attribute, value);
+	}
+
+	Object get(RunAttribute attribute) {
+		return attributes.get(attribute);
+	}
+
+	Date getDate(RunAttribute attribute) {
+		return (Date) attributes.get(attribute);
+	}
+
+	RunStatus getStatus() {
+		return (RunStatus) attributes.get(RunAttribute.STATUS);
+	}
+
+	Map<RunAttribute, Object> getAttributes() {
+		return Collections.unmodifiableMap(attributes);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import uk.org.taverna.server.client.RunStatus;
+
+/**
+ * Selects runs by their status, age and expiry time. A run must match every
+ * criterion that has been set. A filter with no criteria matches every run.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunFilter {
+
+	private boolean finished;
+	private long finishedFor;
+	private long olderThan;
+	private long expiresWithin;
+
+	RunFilter() {
+		this.finished = false;
+		this.finishedFor = -1;
+		this.olderThan = -1;
+		this.expiresWithin = -1;
+	}
+
+	/**
+	 * Only match runs that have finished.
+	 */
+	void setFinished(boolean finished) {
+		this.finished = finished;
+	}
+
+	/**
+	 * Only match runs that finished more than this many milliseconds ago.
+	 */
+	void setFinishedFor(long millis) {
+		this.finished = true;
+		this.finishedFor = millis;
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Only match runs created more than this many milliseconds ago.
+	 */
+	void setOlderThan(long millis) {
+		this.olderThan = millis;
+	}
+
+	/**
+	 * Only match runs that will expire within this many milliseconds.
+	 */
+	void setExpiresWithin(long millis) {
+		this.expiresWithin = millis;
+	}
+
+	long getOlderThan() {
+		return olderThan;
+	}
+
+	boolean isEmpty() {
+		return !finished && olderThan < 0 && expiresWithin < 0;
+	}
+
+	/**
+	 * @return the run attributes that must be fetched to apply this filter.
+	 */
+	Set<RunAttribute> getRequiredAttributes() {
+		Set<RunAttribute> required = EnumSet.noneOf(RunAttribute.class);
+		if (finished) {
+			required.add(RunAttribute.STATUS);
+		}
+		if (finishedFor >= 0) {
+			required.add(RunAttribute.FINISH_TIME);
+		}
+		if (olderThan >= 0) {
+			required.add(RunAttribute.CREATE_TIME);
+		}
+		if (expiresWithin >= 0) {
+			required.add(RunAttribute.EXPIRY);
+		}
+
+		return required;
+	}
+
+	boolean matches(RunDetails run, long now) {
+		if (finished && run.getStatus() != RunStatus.FINISHED) {
+			return false;
+		}
+
+		if (finishedFor >= 0) {
+			Date finish = run.getDate(RunAttribute.FINISH_TIME);
+			if (finish == null || now - finish.getTime() < finishedFor) {
+				return false;
+			}
+		}
+
+		if (olderThan >= 0) {
+			Date created = run.getDate(RunAttribute.CREATE_TIME);
+			if (created == null || now - created.getTime() < olderThan) {
+				return false;
+			}
+		}
+
+		if (expiresWithin >= 0) {
+			Date expiry = run.getDate(RunAttribute.EXPIRY);
+			if (expiry == null || expiry.getTime() - now > expiresWithin) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
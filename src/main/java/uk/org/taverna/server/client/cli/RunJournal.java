@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An append-only record, kept in a local file, of the runs a program has
+ * created and how far each one got. Each line records one step of one run:
+ * 
+ * <pre>
+ * time	key	uuid	phase
+ * </pre>
+ * 
+ * where key names the job the run is for, such as the index of an input set
+ * in a batch. Each line is synced to disk before the step it records is
+ * taken any further, so after a crash a restarted program can find the runs
+ * that were still going and pick them up rather than create them again. A
+ * torn last line, from a crash part way through a write, is ignored.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunJournal implements Closeable {
+
+	enum Phase {
+		/** The run exists but may not have all its inputs set. */
+		CREATED,
+		/** The run has been started. */
+		STARTED,
+		/** The run has finished and its results have been collected. */
+		DONE
+	}
+
+	static final class Entry {
+		private final String key;
+		private final UUID uuid;
+		private final Phase phase;
+
+		Entry(String key, UUID uuid, Phase phase) {
+			this.key = key;
+			this.uuid = uuid;
+			this.phase = phase;
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		UUID getUuid() {
+			return uuid;
+		}
+
+		Phase getPhase() {
+			return phase;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> latest;
+	private final FileOutputStream out;
+
+	/**
+	 * Open a journal, reading any entries already in it and then appending
+	 * to it.
+	 */
+	RunJournal(File file) throws IOException {
+		this.file = file;
+		this.latest = new LinkedHashMap<String, Entry>();
+
+		boolean torn = false;
+		if (file.exists()) {
+			load();
+			torn = endsMidLine();
+		}
+		this.out = new FileOutputStream(file, true);
+
+		// don't let the next entry run on from a torn one
+		if (torn) {
+			out.write('\n');
+		}
+	}
+
+	private boolean endsMidLine() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length == 0) {
+				return false;
+			}
+			raf.seek(length - 1);
+
+			return raf.read() != '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), WorkflowLoader.UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 4) {
+					continue;
+				}
+
+				try {
+					Entry e = new Entry(fields[1], UUID.fromString(fields[2]),
+							Phase.valueOf(fields[3]));
+					latest.put(e.getKey(), e);
+				} catch (IllegalArgumentException e) {
+					// torn or garbled line
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the last entry recorded for key, or null if there is none.
+	 */
+	synchronized Entry get(String key) {
+		return latest.get(key);
+	}
+
+	/**
+	 * @return the runs that were created but not finished with.
+	 */
+	synchronized Collection<Entry> getUnfinished() {
+		List<Entry> unfinished = new ArrayList<Entry>();
+		for (Entry e : latest.values()) {
+			if (e.getPhase() != Phase.DONE) {
+				unfinished.add(e);
+			}
+		}
+
+		return unfinished;
+	}
+
+	/**
+	 * Record that the run for key has reached phase, returning once the
+	 * record is on disk.
+	 */
+	synchronized void record(String key, UUID uuid, Phase phase)
+			throws IOException {
+		if (key.indexOf('\t') != -1 || key.indexOf('\n') != -1) {
+			throw new IllegalArgumentException("Bad journal key '" + key + "'");
+		}
+
+		String line = System.currentTimeMillis() + "\t" + key + "\t" + uuid
+				+ "\t" + phase + "\n";
+		out.write(line.getBytes(WorkflowLoader.UTF8));
+		out.flush();
+		out.getFD().sync();
+		latest.put(key, new Entry(key, uuid, phase));
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.RunStatus;
+
+/**
+ * Watches any number of runs until they finish, sharing a single scheduled
+ * executor between them. Each run is checked first after the minimum
+ * interval and then after exponentially longer intervals, up to the maximum,
+ * so short runs are noticed quickly and long runs are not polled needlessly.
+ * Intervals are jittered so that runs started together do not hit the server
+ * together.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunPoller {
+
+	static final long DEFAULT_MIN_INTERVAL = 200;
+	static final long DEFAULT_MAX_INTERVAL = 10000;
+
+	private static final int DEFAULT_THREADS = 2;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final ScheduledExecutorService scheduler;
+	private final Random random;
+
+	/**
+	 * @param minInterval
+	 *            the shortest time between status checks, in milliseconds.
+	 * @param maxInterval
+	 *            the longest time between status checks, in milliseconds.
+	 */
+	RunPoller(long minInterval, long maxInterval) {
+		this(minInterval, maxInterval, DEFAULT_THREADS);
+	}
+
+	RunPoller(long minInterval, long maxInterval, int threads) {
+		if (minInterval <= 0 || maxInterval < minInterval) {
+			throw new IllegalArgumentException(
+					"Poll intervals must be positive, with min <= max");
+		}
+
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.random = new Random();
+		this.scheduler = new ScheduledThreadPoolExecutor(threads, Workers
+				.factory("run-poller", true));
+	}
+
+	RunPoller() {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+	}
+
+	/**
+	 * Watch a run until it is no longer running.
+	 * 
+	 * @return a future that completes with the run once it has finished.
+	 */
+	Future<Run> watch(Run run) {
+		return watch(run, new Callback());
+	}
+
+	/**
+	 * Watch a run until it is no longer running, telling the callback about
+	 * each status check and the outcome.
+	 * 
+	 * @return a future that completes with the run once it has finished.
+	 */
+	Future<Run> watch(Run run, Callback callback) {
+		Check check = new Check(run, callback);
+		check.schedule(minInterval);
+
+		return check.result;
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private long jitter(long interval) {
+		// "equal jitter": wait somewhere between half and all of the interval
+		long half = interval / 2;
+
+		return half + (long) (random.nextDouble() * (interval - half));
+	}
+
+	/**
+	 * Receives notifications about a watched run. All methods are called on
+	 * the poller's threads so they should return quickly.
+	 */
+	static class Callback {
+		void polled(Run run, RunStatus status) {
+		}
+
+		void finished(Run run) {
+		}
+
+		void failed(Run run, Exception e) {
+		}
+	}
+
+	private final class Check implements Runnable {
+		private final Run run;
+		private final Callback callback;
+		private final Result result;
+		private long interval;
+		private RunStatus last;
+
+		Check(Run run, Callback callback) {
+			this.run = run;
+			this.callback = callback;
+			this.result = new Result();
+			this.interval = minInterval;
+		}
+
+		void schedule(long delay) {
+			scheduler.schedule(this, jitter(delay), TimeUnit.MILLISECONDS);
+		}
+
+		public void run() {
+			if (result.isCancelled()) {
+				return;
+			}
+
+			try {
+				long t = Metrics.start();
+				RunStatus status = run.getStatus();
+				Metrics.stop("getStatus", t);
+				if (status != last) {
+					Events.emit(Events.STATUS, run.getUUID(), "status", status);
+					last = status;
+				}
+				callback.polled(run, status);
+				if (status == RunStatus.RUNNING) {
+					interval = Math.min(maxInterval, interval * 2);
+					schedule(interval);
+				} else {
+					callback.finished(run);
+					result.complete(run);
+				}
+			} catch (Exception e) {
+				Events.emit(Events.ERROR, run.getUUID(), "phase", "status",
+						"message", e.toString());
+				callback.failed(run, e);
+				result.fail(e);
+			}
+		}
+	}
+
+	private static final class Result extends FutureTask<Run> {
+		Result() {
+			super(new Callable<Run>() {
+				public Run call() {
+					throw new IllegalStateException();
+				}
+			});
+		}
+
+		void complete(Run run) {
+			set(run);
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.Server;
+
+/**
+ * Direct access to the REST resources of a run, for those transfers that are
+ * too big to go through the String based methods of {@link Run}. Everything
+ * here is streamed through a fixed size buffer so heap use does not depend on
+ * the size of the data being moved.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunResources {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+	private static final String REST_NS = "http://ns.taverna.org.uk/2010/xml/server/rest/";
+
+	private final UUID uuid;
+	private final URI runUri;
+
+	RunResources(Server server, Run run) {
+		String base = server.getUri().toString();
+		if (base.endsWith("/")) {
+			base = base.substring(0, base.length() - 1);
+		}
+		if (!base.endsWith("/rest")) {
+			base += "/rest";
+		}
+
+		this.uuid = run.getUUID();
+		this.runUri = URI.create(base + "/runs/" + uuid);
+	}
+
+	UUID getUUID() {
+		return uuid;
+	}
+
+	URI getRunUri() {
+		return runUri;
+	}
+
+	URI getWorkingFileUri(String path) {
+		return resolve("wd/" + path);
+	}
+
+	URI getInputUri(String port) {
+		return resolve("input/input/" + port);
+	}
+
+	URI getStdoutUri() {
+		return resolve("listeners/io/properties/stdout");
+	}
+
+	URI getStderrUri() {
+		return resolve("listeners/io/properties/stderr");
+	}
+
+	/**
+	 * Resolve a path against the run, percent-encoding each of its segments
+	 * so that file and port names may hold any character.
+	 */
+	private URI resolve(String path) {
+		StringBuilder sb = new StringBuilder(runUri.toString());
+		for (String segment : path.split("/", -1)) {
+			sb.append('/');
+			try {
+				sb.append(URLEncoder.encode(segment, "UTF-8")
+						.replace("+", "%20"));
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported
+				throw new IllegalStateException(e);
+			}
+		}
+
+		return URI.create(sb.toString());
+	}
+
+	/**
+	 * Open a stream on a resource. The caller must close it.
+	 */
+	static InputStream open(URI uri) throws IOException {
+		HttpURLConnection conn = Connections.open(uri);
+		conn.setRequestMethod("GET");
+		conn.setRequestProperty("Accept", "*/*");
+		Compression.accept(conn);
+
+		long t = Metrics.start();
+		int code = conn.getResponseCode();
+		Metrics.stop("GET", t);
+		if (code != HttpURLConnection.HTTP_OK) {
+			Connections.discardError(conn);
+			throw new IOException("Could not read '" + uri + "': HTTP " + code
+					+ " " + conn.getResponseMessage());
+		}
+
+		return Compression.decode(conn);
+	}
+
+	/**
+	 * Copy a resource into a file, creating any missing parent directories.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	static long download(URI uri, File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory '" + parent
+					+ "'");
+		}
+
+		InputStream in = open(uri);
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				long bytes = copy(in, out);
+				Metrics.addBytesIn(bytes);
+
+				return bytes;
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copy a resource to a stream. The output stream is not closed.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	static long download(URI uri, OutputStream out) throws IOException {
+		InputStream in = open(uri);
+		try {
+			long bytes = copy(in, out);
+			Metrics.addBytesIn(bytes);
+
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Upload a local file into the working directory of the run.
+	 * 
+	 * @return the number of bytes uploaded.
+	 */
+	long uploadFile(String name, File file) throws IOException {
+		if (Compression.shouldCompress(file)) {
+			try {
+				return uploadFile(name, file, true);
+			} catch (EncodingRefusedException e) {
+				Compression.setUploads(false);
+			}
+		}
+
+		return uploadFile(name, file, false);
+	}
+
+	private long uploadFile(String name, File file, boolean gzip)
+			throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return put(getWorkingFileUri(name), "application/octet-stream", in,
+					gzip);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Use a Baclava document already in the working directory of the run for
+	 * all of its inputs.
+	 */
+	void setBaclavaInput(String name) throws IOException {
+		put(resolve("input/baclava"), "text/plain", new ByteArrayInputStream(
+				name.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Set an input port to read from a file already in the working directory
+	 * of the run.
+	 */
+	void setInputFile(String port, String name) throws IOException {
+		String body = "<t2sr:runInput xmlns:t2sr=\"" + REST_NS + "\"><t2sr:file>"
+				+ escape(name) + "</t2sr:file></t2sr:runInput>";
+		put(getInputUri(port), "application/xml",
+				new ByteArrayInputStream(body.getBytes("UTF-8")));
+	}
+
+	static long put(URI uri, String contentType, InputStream body)
+			throws IOException {
+		return put(uri, contentType, body, false);
+	}
+
+	/**
+	 * Write a resource, gzipping the body on the way if asked to.
+	 * 
+	 * @return the number of bytes read from body.
+	 * @throws EncodingRefusedException
+	 *             if the body was gzipped and the server will not take it.
+	 */
+	static long put(URI uri, String contentType, InputStream body,
+			boolean gzip) throws IOException {
+		HttpURLConnection conn = Connections.open(uri);
+		conn.setRequestMethod("PUT");
+		conn.setDoOutput(true);
+		conn.setChunkedStreamingMode(BUFFER_SIZE);
+		conn.setRequestProperty("Content-Type", contentType);
+		if (gzip) {
+			conn.setRequestProperty("Content-Encoding", Compression.GZIP);
+		}
+
+		long t = Metrics.start();
+		long sent;
+		OutputStream out = Compression.countWire(conn.getOutputStream());
+		if (gzip) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		try {
+			sent = copy(body, Compression.countData(out));
+		} finally {
+			out.close();
+		}
+
+		int code = conn.getResponseCode();
+		if (gzip && code == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+			Connections.discardError(conn);
+			throw new EncodingRefusedException(uri);
+		}
+		if (code < 200 || code >= 300) {
+			Connections.discardError(conn);
+			throw new IOException("Could not write '" + uri + "': HTTP " + code
+					+ " " + conn.getResponseMessage());
+		}
+		conn.getInputStream().close();
+		Metrics.stop("PUT", t);
+		Metrics.addBytesOut(sent);
+
+		return sent;
+	}
+
+	/**
+	 * Thrown when the server will not take a compressed upload.
+	 */
+	static final class EncodingRefusedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		EncodingRefusedException(URI uri) {
+			super("Server refused compressed upload to '" + uri + "'");
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+
+		return total;
+	}
+}
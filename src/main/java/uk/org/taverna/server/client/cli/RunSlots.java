@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.org.taverna.server.client.Server;
+
+/**
+ * A counting semaphore over the run slots of one server, shared by every
+ * process on this host through files in a common directory. A process takes
+ * a slot before creating a run and gives it back when the run is deleted, so
+ * that between them they do not ask the server for more runs than its run
+ * limit allows. Processes that cannot have a slot straight away wait their
+ * turn in a queue, first come first served, rather than each retrying
+ * against the server.
+ * 
+ * The state is kept in one small file per server which is only read or
+ * changed while holding a lock on it. The number of slots is seeded from the
+ * server's run limit less the runs on it that no process here holds a slot
+ * for, and is read again from the server every so often by whichever process
+ * looks first, without holding the lock while it waits for the server.
+ * 
+ * Each process using the slots holds a lock on a file of its own for as long
+ * as it does so. The operating system drops the lock if the process dies, so
+ * the slots and place in the queue of a process that has gone are taken back
+ * by the next process to look.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class RunSlots {
+
+	static final long DEFAULT_REFRESH_INTERVAL = 30000;
+
+	private static final String STATE_FILE = "state";
+	private static final String HOLDER_DIR = "holders";
+
+	private static final long MIN_WAIT = 100;
+	private static final long MAX_WAIT = 2000;
+
+	// one process may only lock a file once, so its threads take turns
+	private static final ConcurrentMap<String, Object> monitors = new ConcurrentHashMap<String, Object>();
+
+	private final Server server;
+	private final File state;
+	private final File holders;
+	private final String id;
+	private final Object monitor;
+
+	private RandomAccessFile holderFile;
+	private FileLock holderLock;
+
+	RunSlots(File directory, Server server) throws IOException {
+		this.server = server;
+
+		// one directory per server
+		File dir = new File(directory, ContentIndex.toHex(ContentIndex
+				.newDigest().digest(
+						server.getUri().toString()
+								.getBytes(WorkflowLoader.UTF8))));
+		this.holders = new File(dir, HOLDER_DIR);
+		if (!holders.isDirectory() && !holders.mkdirs()) {
+			throw new IOException("Could not create slot directory '" + dir
+					+ "'");
+		}
+		this.state = new File(dir, STATE_FILE).getCanonicalFile();
+
+		Object monitor = new Object();
+		Object existing = monitors.putIfAbsent(state.getPath(), monitor);
+		this.monitor = existing != null ? existing : monitor;
+
+		// pid@host from most JVMs, plus something to tell apart programs
+		// run one after another by the same process
+		this.id = ManagementFactory.getRuntimeMXBean().getName()
+				.replaceAll("[^A-Za-z0-9.@-]", "_")
+				+ "-" + System.nanoTime();
+		holderFile = new RandomAccessFile(new File(holders, id), "rw");
+		holderLock = holderFile.getChannel().lock();
+	}
+
+	/**
+	 * Take a slot, waiting in the queue until one is free.
+	 */
+	void acquire() throws IOException, InterruptedException {
+		long ticket = update(new Change<Long>() {
+			Long apply(Properties p) {
+				long t = getLong(p, "next");
+				p.setProperty("next", Long.toString(t + 1));
+				p.setProperty("ticket." + t, id);
+
+				return t;
+			}
+		});
+
+		long wait = MIN_WAIT;
+		try {
+			while (!take(ticket)) {
+				Thread.sleep(wait);
+				wait = Math.min(wait * 2, MAX_WAIT);
+			}
+		} catch (InterruptedException e) {
+			leave(ticket);
+			throw e;
+		} catch (IOException e) {
+			leave(ticket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Give a slot back.
+	 */
+	void release() throws IOException {
+		update(new Change<Void>() {
+			Void apply(Properties p) {
+				long held = getLong(p, "held." + id);
+				if (held > 1) {
+					p.setProperty("held." + id, Long.toString(held - 1));
+				} else {
+					p.remove("held." + id);
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Give back every slot this process holds and leave the queue.
+	 */
+	void close() throws IOException {
+		try {
+			update(new Change<Void>() {
+				Void apply(Properties p) {
+					forget(p, id);
+
+					return null;
+				}
+			});
+		} finally {
+			holderLock.release();
+			holderFile.close();
+			new File(holders, id).delete();
+		}
+	}
+
+	/**
+	 * @return the slots in use and in total, and the number waiting, for
+	 *         reporting.
+	 */
+	String summary() throws IOException {
+		return update(new Change<String>() {
+			String apply(Properties p) {
+				return String.format("%d of %d run slots on %s in use, %d "
+						+ "waiting", held(p) + getLong(p, "external"),
+						getLong(p, "limit"), server.getUri(), tickets(p)
+								.size());
+			}
+		});
+	}
+
+	// take a slot if the ticket is at the front of the queue and one is free
+	private boolean take(final long ticket) throws IOException {
+		return update(new Change<Boolean>() {
+			Boolean apply(Properties p) {
+				for (long t : tickets(p)) {
+					if (t < ticket) {
+						return false;
+					}
+				}
+
+				long free = getLong(p, "limit") - getLong(p, "external")
+						- held(p);
+				if (free < 1) {
+					return false;
+				}
+
+				p.remove("ticket." + ticket);
+				p.setProperty("held." + id,
+						Long.toString(getLong(p, "held." + id) + 1));
+
+				return true;
+			}
+		});
+	}
+
+	private void leave(final long ticket) {
+		try {
+			update(new Change<Void>() {
+				Void apply(Properties p) {
+					p.remove("ticket." + ticket);
+
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			// the ticket goes when this process does
+		}
+	}
+
+	/**
+	 * Read the state, change it and write it back, all under the lock. Any
+	 * processes that have gone are cleared out first. If it has been a while
+	 * since the slots were counted from the server, this process takes on
+	 * counting them again and does so before making the change.
+	 */
+	private <T> T update(final Change<T> change) throws IOException {
+		Claim<T> claim = new Claim<T>(change);
+		T result = locked(claim);
+		if (!claim.due) {
+			return result;
+		}
+
+		refresh();
+		return locked(new Change<T>() {
+			T apply(Properties p) {
+				reap(p);
+
+				return change.apply(p);
+			}
+		});
+	}
+
+	private <T> T locked(Change<T> change) throws IOException {
+		synchronized (monitor) {
+			RandomAccessFile file = new RandomAccessFile(state, "rw");
+			try {
+				FileLock lock = file.getChannel().lock();
+				try {
+					byte[] bytes = new byte[(int) file.length()];
+					file.readFully(bytes);
+					Properties p = new Properties();
+					p.load(new ByteArrayInputStream(bytes));
+
+					T result = change.apply(p);
+
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					p.store(out, null);
+					file.seek(0);
+					file.setLength(0);
+					file.write(out.toByteArray());
+
+					return result;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	// runs on the server that no process here holds a slot for are someone
+	// else's, and take slots away from all of us. The server is asked
+	// without the lock, so that a slow one only holds up this process.
+	private void refresh() throws IOException {
+		final int limit;
+		final int runs;
+		try {
+			long t = Metrics.start();
+			limit = server.getRunLimit();
+			Metrics.stop("getRunLimit", t);
+			t = Metrics.start();
+			runs = server.getRuns().size();
+			Metrics.stop("getRuns", t);
+		} catch (RuntimeException e) {
+			// go on with the last counts until the next time
+			System.err.format("Could not count the runs on %s: %s\n", server
+					.getUri(), e);
+			return;
+		}
+
+		locked(new Change<Void>() {
+			Void apply(Properties p) {
+				p.setProperty("limit", Integer.toString(limit));
+				p.setProperty("external", Long.toString(Math.max(0, runs
+						- held(p))));
+
+				return null;
+			}
+		});
+	}
+
+	// clear out processes that no longer hold their holder file
+	private void reap(Properties p) {
+		Set<String> ids = new HashSet<String>();
+		for (String name : p.stringPropertyNames()) {
+			if (name.startsWith("held.")) {
+				ids.add(name.substring("held.".length()));
+			} else if (name.startsWith("ticket.")) {
+				ids.add(p.getProperty(name));
+			}
+		}
+		ids.remove(id);
+
+		for (String other : ids) {
+			if (!isAlive(other)) {
+				forget(p, other);
+			}
+		}
+	}
+
+	private boolean isAlive(String other) {
+		File file = new File(holders, other);
+		if (!file.exists()) {
+			return false;
+		}
+
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				FileLock lock = f.getChannel().tryLock();
+				if (lock == null) {
+					return true;
+				}
+				lock.release();
+				file.delete();
+
+				return false;
+			} finally {
+				f.close();
+			}
+		} catch (OverlappingFileLockException e) {
+			// held by this process
+			return true;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static void forget(Properties p, String holder) {
+		p.remove("held." + holder);
+		for (String name : p.stringPropertyNames()) {
+			if (name.startsWith("ticket.")
+					&& p.getProperty(name).equals(holder)) {
+				p.remove(name);
+			}
+		}
+	}
+
+	private static long held(Properties p) {
+		long held = 0;
+		for (String name : p.stringPropertyNames()) {
+			if (name.startsWith("held.")) {
+				held += getLong(p, name);
+			}
+		}
+
+		return held;
+	}
+
+	private static Set<Long> tickets(Properties p) {
+		Set<Long> tickets = new HashSet<Long>();
+		for (String name : p.stringPropertyNames()) {
+			if (name.startsWith("ticket.")) {
+				tickets.add(Long.valueOf(name.substring("ticket.".length())));
+			}
+		}
+
+		return tickets;
+	}
+
+	private static long getLong(Properties p, String name) {
+		return Long.parseLong(p.getProperty(name, "0"));
+	}
+
+	private abstract static class Change<T> {
+		abstract T apply(Properties p);
+	}
+
+	// make a change, unless the slots are due to be counted again first
+	private final class Claim<T> extends Change<T> {
+		private final Change<T> change;
+		boolean due;
+
+		Claim(Change<T> change) {
+			this.change = change;
+		}
+
+		T apply(Properties p) {
+			reap(p);
+			long now = System.currentTimeMillis();
+			if (now - getLong(p, "refreshed") > DEFAULT_REFRESH_INTERVAL) {
+				// no other process need count them as well
+				p.setProperty("refreshed", Long.toString(now));
+				due = true;
+
+				return null;
+			}
+
+			return change.apply(p);
+		}
+	}
+}
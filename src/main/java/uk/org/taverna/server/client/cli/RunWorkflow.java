@@ -32,19 +32,28 @@
 
 package uk.org.taverna.server.client.cli;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
-import org.apache.commons.io.FileUtils;
 
 import uk.org.taverna.server.client.Run;
 import uk.org.taverna.server.client.RunStatus;
@@ -59,19 +68,66 @@ public final class RunWorkflow extends ConsoleApp {
 
 	private static final String NAME = "RunWorkflow";
 
+	// the journal key for a single run; batches key runs by their index
+	private static final String JOURNAL_KEY = "run";
+
+	private static final String GZIP_SUFFIX = ".gz";
+
+	// where scatter mode keeps its chunks, under the output directory
+	private static final String CHUNK_DIR = ".chunks";
+
+	// where run slots are shared with other processes, by default
+	private static final String SLOTS_DIR = "t2-server-slots";
+
+	private ServerPool servers;
+
 	public RunWorkflow() {
 		super(NAME);
 	}
 
 	@Override
 	public void run(CommandLine line) {
+		try {
+			runWorkflow(line);
+		} finally {
+			if (servers != null) {
+				servers.close();
+			}
+		}
+	}
+
+	private void runWorkflow(CommandLine line) {
+
+		// attach to an existing run?
+		UUID attach = null;
+		if (line.hasOption("attach")) {
+			try {
+				attach = UUID.fromString(line.getOptionValue("attach"));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Bad run uuid: "
+						+ line.getOptionValue("attach"));
+				showHelpAndExit(1);
+			}
+			if (line.hasOption("batch")) {
+				System.out.println("Cannot attach to a run in batch mode.");
+				showHelpAndExit(1);
+			}
+		}
+
+		// inputs of a batch only come from its manifest
+		if (line.hasOption("batch")
+				&& (line.hasOption('i') || line.hasOption('f')
+						|| line.hasOption('b') || line.hasOption('o'))) {
+			System.out.println("Options -i, -f, -b and -o cannot be used in "
+					+ "batch mode. Give the inputs in the manifest instead.");
+			showHelpAndExit(1);
+		}
 
-		// load workflow
-		String workflow = getWorkflow(line);
+		// load workflow, unless it is already running
+		String workflow = attach == null ? getWorkflow(line) : null;
 
 		// parse inputs
-		Map<String, String> inputs = getInputs(line);
-		Map<String, File> files = getInputFiles(line);
+		InputSet inputs = getInputs(line);
 
 		boolean outputRefs = false;
 		if (line.hasOption('r')) {
@@ -93,132 +149,648 @@ public final class RunWorkflow extends ConsoleApp {
 			baclavaOut = new File(line.getOptionValue('o', "out.xml"));
 		}
 
-		// get server address from left over arguments
-		Server server = getServer(line.getArgs());
+		File outputDir = null;
+		if (line.hasOption("output-dir")) {
+			outputDir = new File(line.getOptionValue("output-dir"));
+		}
+
+		int uploadParallelism = InputUploader.DEFAULT_PARALLELISM;
+		if (line.hasOption("upload-parallel")) {
+			uploadParallelism = getPositiveInt(line, "upload-parallel");
+		}
+
+		int downloadParallelism = OutputDownloader.DEFAULT_PARALLELISM;
+		if (line.hasOption("download-parallel")) {
+			downloadParallelism = getPositiveInt(line, "download-parallel");
+		}
+
+		RunPoller poller = getPoller(line);
+
+		// answer from the cache, without going to a server?
+		ResultCache cache = getCache(line, attach != null || outputRefs);
+		String cacheKey = null;
+		if (cache != null) {
+			try {
+				cacheKey = ResultCache.key(workflow, inputs, baclavaIn,
+						baclavaOut != null, new ContentIndex());
+				ResultCache.Entry hit = cache.get(cacheKey);
+				if (hit != null) {
+					System.out.format("Using cached result %s from %s\n",
+							cacheKey, new Date(hit.getCreated()));
+					System.out.println("Exitcode: " + hit.getExitCode());
+					deliver(hit, baclavaOut, outputDir, true);
+					System.out.println(cache.summary());
+					return;
+				}
+			} catch (IOException e) {
+				System.out.println("Could not use the cache: " + e.getMessage());
+				cache = null;
+			}
+		}
+
+		// get server addresses from left over arguments
+		servers = new ServerPool(getServers(line.getArgs()));
+
+		// wait for a free run slot, in turn with other processes?
+		if (line.hasOption("share-slots") || line.hasOption("slots-dir")) {
+			File dir = new File(line.getOptionValue("slots-dir", new File(
+					System.getProperty("java.io.tmpdir"), SLOTS_DIR).getPath()));
+			try {
+				servers.shareSlots(dir);
+			} catch (IOException e) {
+				System.out.format("Cannot share run slots in '%s': %s\n", dir,
+						e.getMessage());
+				exit(1);
+			}
+		}
+
+		// scatter one input file over many runs?
+		if (line.hasOption("scatter")) {
+			int chunks = 0;
+			if (line.hasOption("chunks")) {
+				chunks = getPositiveInt(line, "chunks");
+			}
+			RunJournal journal = openJournal(line);
+			try {
+				scatter(servers, workflow, inputs, line.getOptionValue("scatter"),
+						chunks, deleteRun, poller, outputDir, uploadParallelism,
+						downloadParallelism, journal);
+			} finally {
+				close(journal);
+			}
+			return;
+		}
 
-		// create run
-		Run run = server.createRun(workflow);
+		// batch of runs?
+		if (line.hasOption("batch")) {
+			RunJournal journal = openJournal(line);
+			try {
+				runBatch(servers, workflow, line.getOptionValue("batch"),
+						deleteRun, poller, outputDir, uploadParallelism,
+						downloadParallelism, journal);
+			} finally {
+				close(journal);
+			}
+			return;
+		}
+
+		// attach to a run that is already going, or create and start one
+		RunJournal journal = openJournal(line);
+		AsyncRuns runs = new AsyncRuns(servers, poller,
+				AsyncRuns.DEFAULT_THREADS);
+		try {
+			Run run = null;
+			if (attach != null) {
+				run = attach(servers, attach);
+			} else if (journal != null) {
+				run = resume(runs, journal);
+			}
+			if (run == null) {
+				run = submit(runs, workflow, inputs, baclavaIn, baclavaOut,
+						uploadParallelism, journal);
+			}
+			RunResources resources = new RunResources(servers.getServer(run),
+					run);
+
+			// wait until it is finished, showing its console output as we go?
+			final ConsoleTail tail = line.hasOption("follow") ? new ConsoleTail(
+					resources, System.out, System.err) : null;
+			System.out.print(tail == null ? "Running" : "Running\n");
+			AsyncRuns.result(runs.await(run, new RunPoller.Callback() {
+				@Override
+				void polled(Run run, RunStatus status) {
+					if (tail == null) {
+						System.out.print(".");
+					} else {
+						tail.poll();
+					}
+				}
+			}));
+			if (tail != null) {
+				tail.poll();
+			}
+			System.out.println("\nFinished at "
+					+ RunAttribute.FINISH_TIME.fetch(run));
+
+			// get outputs
+			int exitcode = AsyncRuns.result(runs.exitCode(run));
+			System.out.println("Exitcode: " + exitcode);
+			Events.emit(Events.FINISHED, run.getUUID(), "exitcode", exitcode);
+
+			// keep the result, and then give it out from the cache
+			ResultCache.Entry cached = null;
+			if (cache != null && exitcode == 0) {
+				cached = store(cache, cacheKey, run, resources, exitcode,
+						baclavaOut, downloadParallelism);
+			}
+			if (cached != null) {
+				try {
+					deliver(cached, baclavaOut, outputDir, tail == null);
+				} catch (IOException e) {
+					System.out.format("Could not read cached result: %s\n",
+							e.getMessage());
+				}
+			} else {
+				if (tail == null) {
+					printConsole("Stdout", resources.getStdoutUri());
+					printConsole("Stderr", resources.getStderrUri());
+				}
+				if (exitcode == 0) {
+					writeOutputs(runs, run, resources, baclavaOut, outputDir,
+							outputRefs, downloadParallelism);
+				}
+			}
+
+			String compression = Compression.summary();
+			if (compression != null) {
+				System.out.println(compression);
+			}
+			if (cache != null) {
+				try {
+					System.out.println(cache.summary());
+				} catch (IOException e) {
+					// only statistics
+				}
+			}
+
+			journal(journal, run, RunJournal.Phase.DONE);
+
+			// delete run?
+			if (deleteRun) {
+				AsyncRuns.result(runs.delete(run.getUUID()));
+				Events.emit(Events.DELETED, run.getUUID());
+				System.out.println("Run deleted");
+			}
+		} finally {
+			runs.shutdown();
+			close(journal);
+		}
+	}
+
+	/**
+	 * Write the outputs of a run as a Baclava document or into the output
+	 * directory, or list them.
+	 */
+	private static void writeOutputs(AsyncRuns runs, Run run,
+			RunResources resources, File baclavaOut, File outputDir,
+			boolean outputRefs, int downloadParallelism) {
+		if (baclavaOut != null) {
+			try {
+				writeBaclava(resources, baclavaOut);
+			} catch (IOException e) {
+				Events.emit(Events.ERROR, run.getUUID(), "phase", "outputs",
+						"message", e.toString());
+				System.out.format("Could not write baclava file '%s'\n",
+						baclavaOut.getAbsoluteFile());
+			}
+		} else {
+			ExecutorService downloads = Workers.newFixedThreadPool("download",
+					downloadParallelism);
+			try {
+				if (outputDir != null) {
+					long bytes = AsyncRuns.result(runs.download(run,
+							outputDir, downloads));
+					System.out.format(
+							"Outputs (%d bytes) written to '%s'\n", bytes,
+							outputDir);
+				} else {
+					System.out.println("Outputs:");
+					for (Map.Entry<String, Object> e : AsyncRuns.result(
+							runs.fetchOutputs(run, outputRefs, downloads))
+							.entrySet()) {
+						System.out.format("          %s -> %s\n",
+								e.getKey(), e.getValue());
+					}
+				}
+			} catch (IllegalStateException e) {
+				Events.emit(Events.ERROR, run.getUUID(), "phase", "outputs",
+						"message", e.getMessage());
+				System.out.format("Could not read outputs: %s\n",
+						e.getMessage());
+			} finally {
+				downloads.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Create a run, set its inputs and start it.
+	 */
+	private Run submit(AsyncRuns runs, String workflow, InputSet inputs,
+			File baclavaIn, File baclavaOut, int uploadParallelism,
+			RunJournal journal) {
+		ServerPool servers = runs.getServers();
+		long created = System.nanoTime();
+		Run run = AsyncRuns.result(runs.create(workflow));
+		Server server = servers.getServer(run);
+		Events.emit(Events.CREATED, run.getUUID(), "server", server.getUri(),
+				"durationMillis", Events.since(created));
 		System.out.println("Created run with uuid: " + run.getUUID());
-		System.out.println("Created at " + run.getCreateTime());
+		if (servers.size() > 1) {
+			System.out.println("Created on " + server.getUri());
+		}
+		System.out.println("Created at "
+				+ RunAttribute.CREATE_TIME.fetch(run));
+		journal(journal, run, RunJournal.Phase.CREATED);
 
 		// set inputs
+		RunResources resources = new RunResources(server, run);
 		if (baclavaIn != null) {
 			try {
-				run.uploadBaclavaFile(baclavaIn);
+				long t = System.nanoTime();
+				long bytes = resources.uploadFile(baclavaIn.getName(),
+						baclavaIn);
+				Events.emit(Events.UPLOADED, run.getUUID(), "file",
+						baclavaIn.getPath(), "bytes", bytes, "durationMillis",
+						Events.since(t));
+				t = System.nanoTime();
+				resources.setBaclavaInput(baclavaIn.getName());
+				Events.emit(Events.INPUT_SET, run.getUUID(), "file",
+						baclavaIn.getPath(), "durationMillis", Events.since(t));
 			} catch (IOException e) {
+				Events.emit(Events.ERROR, run.getUUID(), "phase", "inputs",
+						"message", e.toString());
 				System.out.println(e);
 			}
 		} else {
-			if (inputs != null) {
-				for (String port : inputs.keySet()) {
-					String value = inputs.get(port);
-					run.setInput(port, value);
-					System.out.format("Set input '%s' to %s\n", port, value);
-				}
+			ExecutorService uploads = Workers.newFixedThreadPool("upload",
+					uploadParallelism);
+			try {
+				AsyncRuns.result(runs.setInputs(run, inputs,
+						new InputUploader(uploads, new ContentIndex())));
+			} catch (IllegalStateException e) {
+				Events.emit(Events.ERROR, run.getUUID(), "phase", "inputs",
+						"message", e.getMessage());
+				System.err.println(e.getMessage());
+				exit(1);
+			} finally {
+				uploads.shutdown();
 			}
-
-			if (files != null) {
-				for (String port : files.keySet()) {
-					File file = files.get(port);
-					try {
-						run.uploadInputFile(port, file);
-						System.out.format(
-								"Set input '%s' to use file '%s' as input\n",
-								port, file.getName());
-					} catch (IOException e) {
-						System.err.format("Could not set input '%s': %s\n",
-								port, e.getMessage());
-						System.exit(1);
-					}
-				}
+			for (Map.Entry<String, String> e : inputs.getValues().entrySet()) {
+				System.out.format("Set input '%s' to %s\n", e.getKey(),
+						e.getValue());
+			}
+			for (Map.Entry<String, File> e : inputs.getFiles().entrySet()) {
+				System.out.format("Set input '%s' to use file '%s' as input\n",
+						e.getKey(), e.getValue().getName());
 			}
 		}
 
 		// output baclava?
 		if (baclavaOut != null) {
-			run.setBaclavaOutput(baclavaOut.getName());
+			long t = Metrics.start();
+			run.setBaclavaOutput(baclavaName(baclavaOut));
+			Metrics.stop("setBaclavaOutput", t);
 		}
 
-		// Start run and wait until it is finished
-		run.start();
-		System.out.println("Started at " + run.getStartTime());
-		System.out.print("Running");
-		while (run.getStatus() == RunStatus.RUNNING) {
+		// start run
+		long started = System.nanoTime();
+		AsyncRuns.result(runs.start(run));
+		Events.emit(Events.STARTED, run.getUUID(), "durationMillis",
+				Events.since(started));
+		System.out.println("Started at " + RunAttribute.START_TIME.fetch(run));
+		journal(journal, run, RunJournal.Phase.STARTED);
+
+		return run;
+	}
+
+	/**
+	 * Find a run that was started elsewhere and is to be waited on here.
+	 */
+	private Run attach(ServerPool servers, UUID uuid) {
+		Run run = servers.findRun(uuid);
+		if (run == null) {
+			System.out.format("No run with uuid %s on the server%s.\n", uuid,
+					servers.size() > 1 ? "s" : "");
+			exit(1);
+		}
+
+		if (RunAttribute.STATUS.fetch(run) == RunStatus.INITIALIZED) {
+			System.out.format("Run %s has not been started.\n", uuid);
+			exit(1);
+		}
+		System.out.println("Attached to run with uuid: " + uuid);
+		System.out.println("Started at " + RunAttribute.START_TIME.fetch(run));
+
+		return run;
+	}
+
+	/**
+	 * Pick up the run recorded in the journal, if it was started and is
+	 * still on the server. A run that was created but not started may be
+	 * missing some of its inputs so it is deleted, to be created again.
+	 */
+	private Run resume(AsyncRuns runs, RunJournal journal) {
+		ServerPool servers = runs.getServers();
+		RunJournal.Entry entry = journal.get(JOURNAL_KEY);
+		if (entry == null || entry.getPhase() == RunJournal.Phase.DONE) {
+			return null;
+		}
+
+		Run run = servers.findRun(entry.getUuid());
+		if (run == null) {
+			System.out.format("Run %s from the journal is no longer on the "
+					+ "server%s.\n", entry.getUuid(), servers.size() > 1 ? "s"
+					: "");
+			return null;
+		}
+
+		if (entry.getPhase() == RunJournal.Phase.CREATED) {
+			System.out.format("Deleting run %s, which was not started.\n",
+					run.getUUID());
+			AsyncRuns.result(runs.delete(run.getUUID()));
+			Events.emit(Events.DELETED, run.getUUID());
+			return null;
+		}
+
+		System.out.println("Resuming run with uuid: " + run.getUUID());
+		System.out.println("Started at " + RunAttribute.START_TIME.fetch(run));
+
+		return run;
+	}
+
+	private ResultCache getCache(CommandLine line, boolean unsupported) {
+		if (!line.hasOption("cache")) {
+			return null;
+		}
+		if (unsupported || line.hasOption("batch")
+				|| line.hasOption("scatter")) {
+			System.out.println("The cache is only used for single new runs "
+					+ "without -r.");
+			return null;
+		}
+
+		File dir = new File(line.getOptionValue("cache"));
+		try {
+			long size = ResultCache.DEFAULT_MAX_SIZE;
+			if (line.hasOption("cache-size")) {
+				size = parseBytes(line.getOptionValue("cache-size"));
+			}
+			long ttl = ResultCache.DEFAULT_TTL;
+			if (line.hasOption("cache-ttl")) {
+				ttl = Durations.parse(line.getOptionValue("cache-ttl"));
+			}
+
+			return new ResultCache(dir, size, ttl);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad cache option: " + e.getMessage());
+			showHelpAndExit(1);
+		} catch (IOException e) {
+			System.out.format("Cannot open cache '%s': %s\n", dir,
+					e.getMessage());
+		}
+
+		return null;
+	}
+
+	private RunJournal openJournal(CommandLine line) {
+		if (!line.hasOption("journal")) {
+			return null;
+		}
+
+		File file = new File(line.getOptionValue("journal"));
+		try {
+			return new RunJournal(file);
+		} catch (IOException e) {
+			System.out.format("Cannot open journal '%s': %s\n", file,
+					e.getMessage());
+			exit(1);
+		}
+
+		return null;
+	}
+
+	private static void journal(RunJournal journal, Run run,
+			RunJournal.Phase phase) {
+		if (journal == null) {
+			return;
+		}
+
+		try {
+			journal.record(JOURNAL_KEY, run.getUUID(), phase);
+		} catch (IOException e) {
+			System.err.format("Cannot write to journal '%s': %s\n",
+					journal.getFile(), e.getMessage());
+			exit(1);
+		}
+	}
+
+	private static void close(RunJournal journal) {
+		if (journal != null) {
 			try {
-				Thread.sleep(1000);
-				System.out.print(".");
-			} catch (InterruptedException e) {
+				journal.close();
+			} catch (IOException e) {
+				// nothing to do
 			}
 		}
-		System.out.println("\nFinished at " + run.getFinishTime());
+	}
 
-		// get outputs
-		String stdout = run.getConsoleOutput();
-		String stderr = run.getConsoleError();
-		int exitcode = run.getExitCode();
-		System.out.println("Exitcode: " + exitcode);
-		if (stdout != "") {
-			System.out.println("Stdout:\n" + stdout);
+	/**
+	 * The name of the Baclava output document on the server: the name of the
+	 * local file without any ".gz".
+	 */
+	private static String baclavaName(File file) {
+		String name = file.getName();
+		if (name.endsWith(GZIP_SUFFIX)) {
+			name = name.substring(0, name.length() - GZIP_SUFFIX.length());
 		}
-		if (stderr != "") {
-			System.out.println("Stderr:\n" + stderr);
+
+		return name;
+	}
+
+	/**
+	 * Download the Baclava output document of a run, gzipping it as it is
+	 * written if the file name ends in ".gz".
+	 */
+	private static void writeBaclava(RunResources resources, File file)
+			throws IOException {
+		long t = System.nanoTime();
+		InputStream in = RunResources.open(resources
+				.getWorkingFileUri(baclavaName(file)));
+		try {
+			long bytes = writeBaclava(in, file);
+			Metrics.addBytesIn(bytes);
+			Events.emit(Events.OUTPUT_WRITTEN, resources.getUUID(), "file",
+					file.getPath(), "bytes", bytes, "durationMillis",
+					Events.since(t));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of bytes read.
+	 */
+	private static long writeBaclava(InputStream in, File file)
+			throws IOException {
+		boolean gzip = file.getName().endsWith(GZIP_SUFFIX);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				file), RunResources.BUFFER_SIZE);
+		if (gzip) {
+			out = new GZIPOutputStream(out);
 		}
 
-		if (exitcode == 0) {
+		long bytes;
+		try {
+			bytes = RunResources.copy(in, out);
+		} finally {
+			out.close();
+		}
+
+		if (!gzip) {
+			System.out.format("Baclava file written to '%s'\n", file);
+		} else {
+			long written = file.length();
+			System.out.format("Baclava file written to '%s' (%d bytes "
+					+ "compressed to %d, %.1fx)\n", file, bytes, written,
+					written == 0 ? 1.0 : (double) bytes / written);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Stream one of the console logs of a run to stdout, if it has anything
+	 * in it.
+	 */
+	private void printConsole(String title, URI uri) {
+		try {
+			printConsole(title, RunResources.open(uri));
+		} catch (IOException e) {
+			System.out.format("Could not read %s: %s\n", title.toLowerCase(),
+					e.getMessage());
+		}
+	}
+
+	private static void printConsole(String title, InputStream stream)
+			throws IOException {
+		PushbackInputStream in = new PushbackInputStream(stream);
+		try {
+			int first = in.read();
+			if (first != -1) {
+				in.unread(first);
+				System.out.println(title + ":");
+				RunResources.copy(in, System.out);
+				System.out.println();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Download the result of a finished run into the cache.
+	 * 
+	 * @return the cached result, or null if it could not be stored.
+	 */
+	private static ResultCache.Entry store(ResultCache cache, String key,
+			Run run, RunResources resources, int exitcode, File baclavaOut,
+			int downloadParallelism) {
+		ResultCache.Builder result = null;
+		ExecutorService downloads = Workers.newFixedThreadPool("download",
+				downloadParallelism);
+		try {
+			result = cache.create(key);
+			RunResources.download(resources.getStdoutUri(),
+					result.getFile(ResultCache.STDOUT));
+			RunResources.download(resources.getStderrUri(),
+					result.getFile(ResultCache.STDERR));
 			if (baclavaOut != null) {
-				try {
-					FileUtils.writeStringToFile(baclavaOut,
-							run.getBaclavaOutput());
-					System.out.format("Baclava file written to '%s'\n",
-							baclavaOut);
-				} catch (IOException e) {
-					System.out.format("Could not write baclava file '%s'\n",
-							baclavaOut.getAbsoluteFile());
-				}
+				RunResources.download(resources
+						.getWorkingFileUri(baclavaName(baclavaOut)), result
+						.getFile(ResultCache.BACLAVA));
 			} else {
-				System.out.println("Outputs:");
-				for (String port : run.getOutputPorts()) {
-					System.out.format("          %s -> %s\n", port,
-							run.getOutput(port, outputRefs));
-				}
+				new OutputDownloader(result.getFile(ResultCache.OUTPUTS),
+						downloads).download(run);
+			}
+
+			return result.commit(exitcode);
+		} catch (IOException e) {
+			if (result != null) {
+				result.discard();
+			}
+			System.out.println("Could not cache the result: "
+					+ e.getMessage());
+
+			return null;
+		} finally {
+			downloads.shutdown();
+		}
+	}
+
+	/**
+	 * Show a cached result as though it had come from a run: its console
+	 * logs, then its outputs written or listed as asked.
+	 */
+	private static void deliver(ResultCache.Entry result, File baclavaOut,
+			File outputDir, boolean console) throws IOException {
+		if (console) {
+			printConsole("Stdout", new FileInputStream(
+					result.getFile(ResultCache.STDOUT)));
+			printConsole("Stderr", new FileInputStream(
+					result.getFile(ResultCache.STDERR)));
+		}
+
+		if (baclavaOut != null) {
+			InputStream in = new FileInputStream(
+					result.getFile(ResultCache.BACLAVA));
+			try {
+				long bytes = writeBaclava(in, baclavaOut);
+				Events.emit(Events.OUTPUT_WRITTEN, null, "file", baclavaOut
+						.getPath(), "bytes", bytes, "cached", true);
+			} finally {
+				in.close();
 			}
+			return;
 		}
 
-		// delete run?
-		if (deleteRun) {
-			run.delete();
-			System.out.println("Run deleted");
+		File outputs = result.getFile(ResultCache.OUTPUTS);
+		if (outputDir != null) {
+			long bytes = ResultCache.copy(outputs, outputDir);
+			Events.emit(Events.OUTPUT_WRITTEN, null, "file", outputDir
+					.getPath(), "bytes", bytes, "cached", true);
+			System.out.format("Outputs (%d bytes) written to '%s'\n", bytes,
+					outputDir);
+			return;
+		}
+
+		System.out.println("Outputs:");
+		String[] ports = outputs.list();
+		Arrays.sort(ports);
+		for (String port : ports) {
+			if (!port.equals(OutputDownloader.INDEX_FILE)) {
+				System.out.format("          %s -> %s\n", port, ResultCache
+						.readValue(new File(outputs, port)));
+			}
 		}
 	}
 
-	private String getWorkflow(CommandLine line) {
+	String getWorkflow(CommandLine line) {
 		String workflow = null;
 		if (line.hasOption('w')) {
 			String wkfFilename = line.getOptionValue('w');
-			File wkfFile = new File(wkfFilename);
 			try {
-				workflow = FileUtils.readFileToString(wkfFile);
+				if (!wkfFilename.equals(WorkflowLoader.STDIN)) {
+					workflow = WorkflowLoader.load(new File(wkfFilename));
+				} else if (!isEmbedded()) {
+					workflow = WorkflowLoader.read(System.in);
+				}
 			} catch (IOException e) {
-				System.out.format("Cannot read file '%s'. %s", wkfFilename,
+				System.out.format("Cannot read file '%s'. %s\n", wkfFilename,
 						e.toString());
 			}
-		}
-
-		// try to read workflow stdin
-		if (workflow == null) {
+		} else if (!isEmbedded()) {
+			// try to read workflow from stdin, if there is one waiting there
+			// and it is not being used by a shell
 			try {
-				BufferedReader in = new BufferedReader(new InputStreamReader(
-						System.in));
-				while (in.ready()) {
-					workflow += in.readLine();
-				}
+				workflow = WorkflowLoader.readWaiting(System.in);
 			} catch (IOException e) {
 				System.out.println("Cannot read workflow from input stream.");
 			}
 		}
 
 		// still no workflow?
-		if (workflow == null) {
+		if (workflow == null || isBlank(workflow)) {
 			System.out.println("No workflow provided.");
 			showHelpAndExit(1);
 		}
@@ -226,36 +798,175 @@ public final class RunWorkflow extends ConsoleApp {
 		return workflow;
 	}
 
-	private Map<String, String> getInputs(CommandLine line) {
-		HashMap<String, String> inputs = null;
+	// unlike trim(), this does not copy large workflows
+	private static boolean isBlank(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isWhitespace(s.charAt(i))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	InputSet getInputs(CommandLine line) {
+		InputSet inputs = new InputSet(0);
 
 		if (line.hasOption('i')) {
-			inputs = new HashMap<String, String>();
-			String[] pairs = line.getOptionValues('i');
+			for (String s : line.getOptionValues('i')) {
+				inputs.addValue(s);
+			}
+		}
 
-			for (String s : pairs) {
-				String[] pair = s.trim().split(":", 2);
-				inputs.put(pair[0], pair[1]);
+		if (line.hasOption('f')) {
+			for (String s : line.getOptionValues('f')) {
+				inputs.addFile(s);
 			}
 		}
 
 		return inputs;
 	}
 
-	private Map<String, File> getInputFiles(CommandLine line) {
-		HashMap<String, File> files = null;
+	private int getPositiveInt(CommandLine line, String option) {
+		try {
+			int value = Integer.parseInt(line.getOptionValue(option));
+			if (value > 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+
+		System.out.format("Option '%s' must be a positive number.\n", option);
+		showHelpAndExit(1);
 
-		if (line.hasOption('f')) {
-			files = new HashMap<String, File>();
-			String[] pairs = line.getOptionValues('f');
+		return 0;
+	}
+
+	private RunPoller getPoller(CommandLine line) {
+		try {
+			long min = Long.parseLong(line.getOptionValue("poll-min",
+					Long.toString(RunPoller.DEFAULT_MIN_INTERVAL)));
+			long max = Long.parseLong(line.getOptionValue("poll-max",
+					Long.toString(Math.max(min, RunPoller.DEFAULT_MAX_INTERVAL))));
 
-			for (String s : pairs) {
-				String[] pair = s.trim().split(":", 2);
-				files.put(pair[0], new File(pair[1]));
+			return new RunPoller(min, max);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad poll interval: " + e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		return null;
+	}
+
+	private void runBatch(ServerPool servers, String workflow, String manifest,
+			boolean deleteRuns, RunPoller poller, File outputDir,
+			int uploadParallelism, int downloadParallelism, RunJournal journal) {
+		BatchManifest inputSets = null;
+		try {
+			inputSets = new BatchManifest(new File(manifest));
+			runBatch(servers, workflow, inputSets, servers.getRunLimit(),
+					deleteRuns, poller, outputDir, uploadParallelism,
+					downloadParallelism, journal);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			exit(1);
+		} finally {
+			if (inputSets != null) {
+				try {
+					inputSets.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
 			}
 		}
+	}
+
+	private static RunBatch runBatch(ServerPool servers, String workflow,
+			Iterator<InputSet> inputSets, int maxInFlight, boolean deleteRuns,
+			RunPoller poller, File outputDir, int uploadParallelism,
+			int downloadParallelism, RunJournal journal) {
+		ExecutorService uploads = Workers.newFixedThreadPool("upload",
+				uploadParallelism);
+		ExecutorService downloads = Workers.newFixedThreadPool("download",
+				downloadParallelism);
+		try {
+			RunBatch batch = new RunBatch(new AsyncRuns(servers, poller,
+					maxInFlight), workflow, deleteRuns, maxInFlight,
+					outputDir, downloads, new InputUploader(uploads,
+							new ContentIndex()));
+			batch.setJournal(journal);
+			batch.run(inputSets);
 
-		return files;
+			return batch;
+		} finally {
+			uploads.shutdown();
+			downloads.shutdown();
+		}
+	}
+
+	/**
+	 * Split the file given for one input port into chunks, run the workflow
+	 * over each chunk at once and join the outputs of the runs back together,
+	 * in order, in the output directory.
+	 */
+	private void scatter(ServerPool servers, String workflow, InputSet inputs,
+			String port, int chunks, boolean deleteRuns, RunPoller poller,
+			File outputDir, int uploadParallelism, int downloadParallelism,
+			RunJournal journal) {
+		File input = inputs.getFiles().get(port);
+		if (input == null) {
+			System.out.format("Give the input to scatter with -f %s:FILE\n",
+					port);
+			showHelpAndExit(1);
+		}
+		if (outputDir == null) {
+			System.out.println("Scatter mode needs --output-dir.");
+			showHelpAndExit(1);
+		}
+
+		int runLimit = servers.getRunLimit();
+		if (chunks == 0) {
+			chunks = runLimit;
+		}
+
+		try {
+			List<File> files = new Scatter(input).split(chunks, new File(
+					outputDir, CHUNK_DIR));
+			System.out.format("Split '%s' into %d chunks\n", input,
+					files.size());
+
+			List<InputSet> sets = new ArrayList<InputSet>(files.size());
+			for (int i = 0; i < files.size(); i++) {
+				InputSet set = new InputSet(i);
+				for (Map.Entry<String, String> e : inputs.getValues()
+						.entrySet()) {
+					set.setValue(e.getKey(), e.getValue());
+				}
+				for (Map.Entry<String, File> e : inputs.getFiles().entrySet()) {
+					set.setFile(e.getKey(), e.getValue());
+				}
+				set.setFile(port, files.get(i));
+				sets.add(set);
+			}
+
+			RunBatch batch = runBatch(servers, workflow, sets.iterator(),
+					runLimit, deleteRuns, poller, outputDir, uploadParallelism,
+					downloadParallelism, journal);
+			if (batch.getFailed() > 0) {
+				System.out.format("%d chunks failed so the outputs have not "
+						+ "been joined.\n", batch.getFailed());
+				exit(1);
+			}
+
+			for (String output : Scatter.gather(outputDir, files.size())) {
+				System.out.format("Output '%s' written to '%s'\n", output,
+						new File(outputDir, output));
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			exit(1);
+		}
 	}
 
 	@Override
@@ -270,13 +981,13 @@ public final class RunWorkflow extends ConsoleApp {
 		opts.add(OptionBuilder
 				.withLongOpt("baclava-out")
 				.withDescription(
-						"Return outputs in baclava format. A filename may be specified or 'out.xml' is used")
+						"Return outputs in baclava format. A filename may be specified or 'out.xml' is used. If the filename ends in .gz the file is gzipped")
 				.hasOptionalArg().withArgName("BACLAVA").create('o'));
 
 		opts.add(OptionBuilder
 				.withLongOpt("workflow")
 				.withDescription(
-						"The workflow to run. If this is not specified then the workflow is read from standard input")
+						"The workflow to run, or - to read it from standard input. If this is not specified then a workflow already waiting on standard input is read")
 				.hasArg().withArgName("WORKFLOW").create('w'));
 
 		opts.add(OptionBuilder.withLongOpt("input")
@@ -289,6 +1000,30 @@ public final class RunWorkflow extends ConsoleApp {
 						"Set input port INPUT to use FILE for its input")
 				.hasArg().withArgName("INPUT:FILE").create('f'));
 
+		opts.add(OptionBuilder
+				.withLongOpt("upload-parallel")
+				.withDescription(
+						"Upload up to N input files at once. Default "
+								+ InputUploader.DEFAULT_PARALLELISM).hasArg()
+				.withArgName("N").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("download-parallel")
+				.withDescription(
+						"Read up to N output ports or files at once. Default "
+								+ OutputDownloader.DEFAULT_PARALLELISM).hasArg()
+				.withArgName("N").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("output-dir")
+				.withDescription(
+						"Write each output port to its own file in DIR. Lists "
+								+ "are written as directories of numbered items. "
+								+ "An index of the files, "
+								+ OutputDownloader.INDEX_FILE
+								+ ", is written too")
+				.hasArg().withArgName("DIR").create());
+
 		opts.add(OptionBuilder
 				.withLongOpt("output-refs")
 				.withDescription(
@@ -303,6 +1038,113 @@ public final class RunWorkflow extends ConsoleApp {
 								+ "the run will still be deleted when its expiry time is reached")
 				.create('D'));
 
+		opts.add(OptionBuilder
+				.withLongOpt("batch")
+				.withDescription(
+						"Run the workflow once for each line of MANIFEST, keeping "
+								+ "up to the server's run limit in flight. MANIFEST "
+								+ "is either CSV with a header line of input port "
+								+ "names, or JSON lines (*.jsonl) mapping port "
+								+ "names to values. Prefix a port name with '@' "
+								+ "to give a file for that port, as with -f. "
+								+ "Without -D each run keeps its run slot, so "
+								+ "no more lines are run than there are slots")
+				.hasArg().withArgName("MANIFEST").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("attach")
+				.withDescription(
+						"Do not create a run but wait for the run with id UUID, "
+								+ "already started, to finish and collect its "
+								+ "results").hasArg().withArgName("UUID")
+				.create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("journal")
+				.withDescription(
+						"Record each run created, and how far it got, in "
+								+ "FILE. If this program is run again with the "
+								+ "same FILE it waits on the runs that were "
+								+ "started instead of creating them again, and "
+								+ "in batch mode skips the input sets already "
+								+ "done").hasArg().withArgName("FILE").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("scatter")
+				.withDescription(
+						"Split the file given for input PORT with -f into "
+								+ "chunks of whole lines, run the workflow over "
+								+ "each chunk at once and join the outputs of "
+								+ "the runs, in order, in --output-dir")
+				.hasArg().withArgName("PORT").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("chunks")
+				.withDescription(
+						"With --scatter, split the input into N chunks. "
+								+ "Default is the server's run limit")
+				.hasArg().withArgName("N").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("cache")
+				.withDescription(
+						"Keep the results of runs in DIR and, if exactly the "
+								+ "same workflow is run with exactly the same "
+								+ "inputs again, give out the kept result "
+								+ "instead of going to the server. Only runs "
+								+ "that succeed are kept").hasArg()
+				.withArgName("DIR").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("cache-size")
+				.withDescription(
+						"Remove the least recently used results once the cache "
+								+ "is bigger than SIZE bytes, e.g. 500m or 2g. "
+								+ "Default 1g").hasArg().withArgName("SIZE")
+				.create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("cache-ttl")
+				.withDescription(
+						"Do not use results kept for longer than DURATION. "
+								+ "Default "
+								+ Durations.format(ResultCache.DEFAULT_TTL))
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(new Option(null, "share-slots", false,
+				"Share the run slots of the server with other processes on "
+						+ "this host that also give this option. Before "
+						+ "creating a run, wait in turn for a free slot "
+						+ "rather than going over the server's run limit"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("slots-dir")
+				.withDescription(
+						"Keep the shared run slots in DIR, implies "
+								+ "--share-slots. Default " + SLOTS_DIR
+								+ " in the temporary directory").hasArg()
+				.withArgName("DIR").create());
+
+		opts.add(new Option(null, "follow", false,
+				"Show the console output of the run as it is written, rather "
+						+ "than when the run has finished"));
+
+		opts.add(OptionBuilder
+				.withLongOpt("poll-min")
+				.withDescription(
+						"The shortest time to wait between checks on the status "
+								+ "of a run, in milliseconds. Default "
+								+ RunPoller.DEFAULT_MIN_INTERVAL).hasArg()
+				.withArgName("MILLIS").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("poll-max")
+				.withDescription(
+						"The longest time to wait between checks on the status "
+								+ "of a run, in milliseconds. Default "
+								+ RunPoller.DEFAULT_MAX_INTERVAL).hasArg()
+				.withArgName("MILLIS").create());
+
 		return opts;
 	}
 }
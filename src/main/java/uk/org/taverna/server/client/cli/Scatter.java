@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits a newline-delimited input file into chunks, so that a workflow can
+ * be run over each chunk at the same time, and joins the outputs of those
+ * runs back together in order. Everything is streamed: neither the input nor
+ * the outputs are ever held in memory.
+ * 
+ * The outputs of the run for chunk i are expected in the sub-directory i of
+ * the output directory, as written by {@link RunBatch}. Each output port of
+ * the chunks is joined into a file of the same name in the output directory,
+ * one line per item; list outputs are flattened in order.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Scatter {
+
+	private static final int BUFFER_SIZE = RunResources.BUFFER_SIZE;
+
+	private final File input;
+
+	Scatter(File input) {
+		this.input = input;
+	}
+
+	/**
+	 * Split the input into at most chunks files of as near the same number of
+	 * lines as can be, in directory. Chunk files are named after their index.
+	 * 
+	 * @return the chunk files, in order.
+	 */
+	List<File> split(int chunks, File directory) throws IOException {
+		long lines = countLines();
+		if (lines == 0) {
+			throw new IOException("Input file '" + input + "' is empty");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory '" + directory
+					+ "'");
+		}
+
+		long perChunk = (lines + chunks - 1) / chunks;
+		List<File> files = new ArrayList<File>();
+		InputStream in = new FileInputStream(input);
+		OutputStream out = null;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long line = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				int start = 0;
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] != '\n' || ++line % perChunk != 0) {
+						continue;
+					}
+
+					// end of a chunk
+					if (out == null) {
+						out = nextChunk(directory, files);
+					}
+					out.write(buffer, start, i + 1 - start);
+					out.close();
+					out = null;
+					start = i + 1;
+				}
+				if (start < read) {
+					if (out == null) {
+						out = nextChunk(directory, files);
+					}
+					out.write(buffer, start, read - start);
+				}
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			in.close();
+		}
+
+		return files;
+	}
+
+	private static OutputStream nextChunk(File directory, List<File> files)
+			throws IOException {
+		File chunk = new File(directory, Integer.toString(files.size()));
+		files.add(chunk);
+
+		return new BufferedOutputStream(new FileOutputStream(chunk),
+				BUFFER_SIZE);
+	}
+
+	private long countLines() throws IOException {
+		InputStream in = new FileInputStream(input);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long lines = 0;
+			int last = '\n';
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						lines++;
+					}
+				}
+				if (read > 0) {
+					last = buffer[read - 1];
+				}
+			}
+
+			// count an unterminated last line
+			return last == '\n' ? lines : lines + 1;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Join the outputs of chunks runs in outputDir.
+	 * 
+	 * @return the names of the output ports joined.
+	 */
+	static List<String> gather(File outputDir, int chunks) throws IOException {
+		List<String> ports = new ArrayList<String>();
+		String[] names = new File(outputDir, "0").list();
+		if (names == null) {
+			throw new IOException("No outputs for chunk 0 in '" + outputDir
+					+ "'");
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (!name.equals(OutputDownloader.INDEX_FILE)) {
+				ports.add(name);
+			}
+		}
+
+		for (String port : ports) {
+			LineJoiner out = new LineJoiner(new FileOutputStream(new File(
+					outputDir, port)));
+			try {
+				for (int i = 0; i < chunks; i++) {
+					File part = new File(new File(outputDir,
+							Integer.toString(i)), port);
+					if (!part.exists()) {
+						throw new IOException("No output '" + port
+								+ "' for chunk " + i);
+					}
+					out.append(part);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		return ports;
+	}
+
+	// orders list items by number rather than name, so 10 comes after 9
+	private static final Comparator<File> BY_INDEX = new Comparator<File>() {
+		public int compare(File a, File b) {
+			return Long.valueOf(a.getName()).compareTo(
+					Long.valueOf(b.getName()));
+		}
+	};
+
+	/**
+	 * Writes files one after another, ending each one with a new line if it
+	 * does not already have one. An empty file is written as an empty line so
+	 * that line N of the output still belongs to line N of the input.
+	 */
+	private static final class LineJoiner {
+		private final OutputStream out;
+
+		LineJoiner(OutputStream out) {
+			this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+		}
+
+		void append(File file) throws IOException {
+			if (file.isDirectory()) {
+				File[] items = file.listFiles();
+				Arrays.sort(items, BY_INDEX);
+				for (File item : items) {
+					append(item);
+				}
+				return;
+			}
+
+			int last = -1;
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					if (read > 0) {
+						last = buffer[read - 1];
+					}
+				}
+			} finally {
+				in.close();
+			}
+
+			// an empty item still takes its line
+			if (last != '\n') {
+				out.write('\n');
+			}
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+	}
+}
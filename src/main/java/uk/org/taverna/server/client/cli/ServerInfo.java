@@ -32,9 +32,17 @@
 
 package uk.org.taverna.server.client.cli;
 
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
 
 import uk.org.taverna.server.client.Run;
 import uk.org.taverna.server.client.Server;
@@ -47,23 +55,256 @@ import uk.org.taverna.server.client.Server;
 public final class ServerInfo extends ConsoleApp {
 
 	private static final String NAME = "ServerInfo";
+	private static final String USAGE = "[server-address...]";
+	private static final String EXTRA_USAGE = "If more than one server-address is given a report on each is shown in turn, as it arrives: as a JSON array of reports in the json format, and with the column headings only once in the tsv format.";
+
+	private static final String DEFAULT_FIELDS = "expiry";
+
+	enum Format {
+		HUMAN, JSON, TSV
+	}
+
+	private final SimpleDateFormat isoDate;
 
 	public ServerInfo() {
-		super(NAME);
+		super(NAME, USAGE, EXTRA_USAGE);
+
+		isoDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 	}
 
 	@Override
 	public void run(CommandLine line) {
 
-		// get server address from left over arguments
-		Server server = getServer(line.getArgs());
+		Format format = Format.HUMAN;
+		List<RunAttribute> fields = new ArrayList<RunAttribute>();
+		int parallelism = AttributeFetcher.DEFAULT_PARALLELISM;
+		try {
+			format = Format.valueOf(line.getOptionValue("format", "human")
+					.toUpperCase());
+			for (String f : line.getOptionValue("fields", DEFAULT_FIELDS)
+					.split(",")) {
+				if (f.trim().length() != 0) {
+					fields.add(RunAttribute.forLabel(f));
+				}
+			}
+			if (line.hasOption("parallel")) {
+				parallelism = Integer.parseInt(line.getOptionValue("parallel"));
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad option: " + e.getMessage());
+			showHelpAndExit(1);
+		}
+
+		// get server addresses from left over arguments
+		List<Server> servers = getServers(line.getArgs());
+
+		AsyncRuns async = new AsyncRuns(servers.size());
+		try {
+			if (servers.size() == 1) {
+				Server server = servers.get(0);
+				report(System.out, format, server, AsyncRuns.result(async
+						.listRuns(server)), fields, parallelism, true);
+			} else {
+				reportAll(async, format, servers, fields, parallelism);
+			}
+		} finally {
+			async.shutdown();
+		}
+		System.out.flush();
+	}
+
+	/**
+	 * Ask every server for its runs at once, then report on each in turn, in
+	 * the order the servers were given, printing each run as its attributes
+	 * arrive.
+	 */
+	private void reportAll(AsyncRuns async, Format format,
+			List<Server> servers, List<RunAttribute> fields, int parallelism) {
+		List<Future<Collection<Run>>> listed = new ArrayList<Future<Collection<Run>>>();
+		for (Server server : servers) {
+			listed.add(async.listRuns(server));
+		}
+
+		boolean first = true;
+		if (format == Format.JSON) {
+			System.out.print("[");
+		}
+		for (int i = 0; i < servers.size(); i++) {
+			Server server = servers.get(i);
+			Collection<Run> runs;
+			try {
+				runs = AsyncRuns.result(listed.get(i));
+			} catch (RuntimeException e) {
+				System.err.format("Could not read server '%s': %s\n",
+						server.getUri(), e);
+				continue;
+			}
+
+			switch (format) {
+			case HUMAN:
+				System.out.print(first ? "" : "\n");
+				break;
+			case JSON:
+				System.out.print(first ? "\n" : ",\n");
+				break;
+			case TSV:
+				break;
+			}
+
+			report(System.out, format, server, runs, fields, parallelism,
+					first || format != Format.TSV);
+			first = false;
+		}
+		if (format == Format.JSON) {
+			System.out.println("]");
+		}
+	}
+
+	private void report(final PrintStream out, final Format format,
+			Server server, Collection<Run> runs,
+			final List<RunAttribute> fields, int parallelism, boolean header) {
+		if (header) {
+			printHeader(out, format, server, runs.size(), fields);
+		}
+
+		new AttributeFetcher(parallelism, fields).fetch(runs,
+				new AttributeFetcher.Handler() {
+					private boolean first = true;
+
+					public void fetched(RunDetails details) {
+						printRun(out, format, details, fields, first);
+						first = false;
+					}
 
-		Collection<Run> runs = server.getRuns();
-		System.out.println("     Server: " + server.getUri());
-		System.out.println("  Run limit: " + server.getRunLimit());
-		System.out.println("No. of runs: " + runs.size());
-		for (Run run : runs) {
-			System.out.println(run.getUUID() + " - " + run.getExpiry());
+					public void failed(Run run, Exception e) {
+						System.err.format("Could not read run '%s': %s\n",
+								run.getUUID(), e);
+
+						// keep the runs listed in step with runCount
+						if (format == Format.JSON) {
+							printFailure(out, run, e, first);
+							first = false;
+						}
+					}
+				});
+
+		if (format == Format.JSON) {
+			out.println("\n]}");
+		}
+	}
+
+	private void printHeader(PrintStream out, Format format, Server server,
+			int runs, List<RunAttribute> fields) {
+		int runLimit = 0;
+		if (format != Format.TSV) {
+			long t = Metrics.start();
+			runLimit = server.getRunLimit();
+			Metrics.stop("getRunLimit", t);
+		}
+
+		switch (format) {
+		case HUMAN:
+			out.println("     Server: " + server.getUri());
+			out.println("  Run limit: " + runLimit);
+			out.println("No. of runs: " + runs);
+			break;
+		case JSON:
+			out.format("{\"server\": %s, \"runLimit\": %d, "
+					+ "\"runCount\": %d, \"runs\": [",
+					Json.quote(server.getUri().toString()),
+					runLimit, runs);
+			break;
+		case TSV:
+			StringBuilder sb = new StringBuilder("uuid");
+			for (RunAttribute f : fields) {
+				sb.append('\t').append(f.getLabel());
+			}
+			out.println(sb);
+			break;
+		}
+	}
+
+	void printRun(PrintStream out, Format format, RunDetails details,
+			List<RunAttribute> fields, boolean first) {
+		StringBuilder sb = new StringBuilder();
+		switch (format) {
+		case HUMAN:
+			sb.append(details.getRun().getUUID());
+			for (RunAttribute f : fields) {
+				sb.append(" - ").append(details.get(f));
+			}
+			break;
+		case JSON:
+			sb.append(first ? "\n" : ",\n");
+			sb.append("{\"uuid\": ").append(
+					Json.quote(details.getRun().getUUID().toString()));
+			for (RunAttribute f : fields) {
+				Object value = details.get(f);
+				sb.append(", ").append(Json.quote(f.getLabel())).append(": ")
+						.append(value == null ? "null" : Json.quote(format(value)));
+			}
+			sb.append('}');
+			out.print(sb);
+			return;
+		case TSV:
+			sb.append(details.getRun().getUUID());
+			for (RunAttribute f : fields) {
+				Object value = details.get(f);
+				sb.append('\t').append(value == null ? "" : format(value));
+			}
+			break;
 		}
+		out.println(sb);
+	}
+
+	/**
+	 * Print a JSON entry for a run whose attributes could not be read.
+	 */
+	private void printFailure(PrintStream out, Run run, Exception e,
+			boolean first) {
+		out.print((first ? "\n" : ",\n") + "{\"uuid\": "
+				+ Json.quote(run.getUUID().toString()) + ", \"error\": "
+				+ Json.quote(String.valueOf(e)) + "}");
+	}
+
+	private String format(Object value) {
+		if (value instanceof Date) {
+			// shared by the reports on each server
+			synchronized (isoDate) {
+				return isoDate.format((Date) value);
+			}
+		}
+
+		return value.toString();
+	}
+
+	@Override
+	@SuppressWarnings("static-access")
+	public List<Option> registerOptions() {
+		ArrayList<Option> opts = new ArrayList<Option>();
+
+		opts.add(OptionBuilder
+				.withLongOpt("format")
+				.withDescription(
+						"Output format, one of human, json or tsv. Default human")
+				.hasArg().withArgName("FORMAT").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("fields")
+				.withDescription(
+						"Comma separated list of run attributes to show, from "
+								+ "status, created, started, finished and expiry. "
+								+ "Only these are fetched from the server. Default "
+								+ DEFAULT_FIELDS).hasArg()
+				.withArgName("FIELDS").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("parallel")
+				.withDescription(
+						"Fetch the attributes of up to N runs at once. Default "
+								+ AttributeFetcher.DEFAULT_PARALLELISM).hasArg()
+				.withArgName("N").create());
+
+		return opts;
 	}
 }
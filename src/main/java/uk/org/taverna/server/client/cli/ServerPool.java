@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.taverna.server.client.Run;
+import uk.org.taverna.server.client.Server;
+
+/**
+ * A set of servers that can be used as one. New runs are placed on the
+ * server with the most free capacity, which is its run limit less the runs
+ * on it. Capacity is read from the servers when it is first needed and
+ * again when placing a run if it has not been read for a while, and is kept
+ * up to date in between as runs are placed and deleted. If a server will not
+ * create a run it is treated as full until the next refresh and the run is
+ * tried on the next best server.
+ * 
+ * The pool remembers which server each run it has seen is on. With only one
+ * server there is nothing to choose between so capacity is never read.
+ * 
+ * The run slots of each server may also be shared with other processes on
+ * this host, see {@link RunSlots}, in which case a slot is taken on the
+ * chosen server before each run is created, waiting for one if need be, and
+ * given back when the run is deleted.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class ServerPool {
+
+	static final long DEFAULT_REFRESH_INTERVAL = 10000;
+
+	private final List<Member> members;
+	private final ConcurrentMap<UUID, Member> owners;
+	// the runs holding a shared slot
+	private final ConcurrentMap<UUID, Member> admitted;
+	private final ExecutorService executor;
+	private long refreshed;
+
+	ServerPool(List<Server> servers) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No servers");
+		}
+
+		this.members = new ArrayList<Member>();
+		for (Server s : servers) {
+			members.add(new Member(s));
+		}
+		this.owners = new ConcurrentHashMap<UUID, Member>();
+		this.admitted = new ConcurrentHashMap<UUID, Member>();
+
+		// idle threads die off so the pool needs no shutting down
+		this.executor = Workers.newCachedThreadPool("server-pool", true);
+	}
+
+	/**
+	 * Share the run slots of the servers with other processes, through files
+	 * in the given directory.
+	 */
+	void shareSlots(File directory) throws IOException {
+		for (Member m : members) {
+			m.slots = new RunSlots(directory, m.server);
+		}
+	}
+
+	/**
+	 * Give back any shared run slots still held. Slots held by runs that
+	 * have not been deleted are given back too, and their runs then count
+	 * against the other processes as runs they know nothing about.
+	 */
+	void close() {
+		for (Member m : members) {
+			if (m.slots != null) {
+				try {
+					m.slots.close();
+				} catch (IOException e) {
+					// taken back by the next process to look
+				}
+				m.slots = null;
+			}
+		}
+		admitted.clear();
+	}
+
+	int size() {
+		return members.size();
+	}
+
+	List<Server> getServers() {
+		List<Server> servers = new ArrayList<Server>(members.size());
+		for (Member m : members) {
+			servers.add(m.server);
+		}
+
+		return Collections.unmodifiableList(servers);
+	}
+
+	/**
+	 * @return the run limits of all of the servers added together.
+	 */
+	int getRunLimit() {
+		if (members.size() == 1) {
+			Member m = members.get(0);
+			long t = Metrics.start();
+			int limit = m.server.getRunLimit();
+			Metrics.stop("getRunLimit", t);
+
+			return limit;
+		}
+
+		if (isStale()) {
+			refresh();
+		}
+
+		int total = 0;
+		for (Member m : members) {
+			total += m.limit;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Read the capacity of every server, all at once.
+	 */
+	void refresh() {
+		synchronized (this) {
+			refreshed = System.currentTimeMillis();
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Member m : members) {
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					m.refresh();
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// that server stays as it was
+			}
+		}
+	}
+
+	/**
+	 * Create a run on the server with the most free capacity, moving on to
+	 * the next if a server refuses.
+	 * 
+	 * @throws RuntimeException
+	 *             the failure from the last server tried, if none would
+	 *             create the run.
+	 * @throws IllegalStateException
+	 *             if a shared run slot could not be taken, in which case no
+	 *             other server is tried.
+	 */
+	Run createRun(String workflow) {
+		if (members.size() > 1 && isStale()) {
+			refresh();
+		}
+
+		List<Member> tried = new ArrayList<Member>();
+		RuntimeException failure = null;
+		while (tried.size() < members.size()) {
+			Member m = place(tried);
+			tried.add(m);
+			RunSlots slots = m.slots;
+			if (slots != null) {
+				try {
+					acquire(slots);
+				} catch (RuntimeException e) {
+					// a local failure, which says nothing about the server
+					m.active.decrementAndGet();
+					throw e;
+				}
+			}
+			try {
+				long t = Metrics.start();
+				Run run = m.server.createRun(workflow);
+				Metrics.stop("createRun", t);
+				if (Metrics.isEnabled()) {
+					Metrics.addBytesOut(workflow
+							.getBytes(WorkflowLoader.UTF8).length);
+				}
+				owners.put(run.getUUID(), m);
+				if (slots != null) {
+					admitted.put(run.getUUID(), m);
+				}
+
+				return run;
+			} catch (RuntimeException e) {
+				if (slots != null) {
+					release(slots);
+				}
+				m.full();
+				failure = e;
+				if (members.size() > 1) {
+					System.err.format("Server %s would not create a run: %s\n",
+							m.server.getUri(), e.getMessage());
+				}
+			}
+		}
+
+		throw failure;
+	}
+
+	// only one caller at a time gets to refresh, the others carry on
+	private synchronized boolean isStale() {
+		long now = System.currentTimeMillis();
+		if (now - refreshed < DEFAULT_REFRESH_INTERVAL) {
+			return false;
+		}
+		refreshed = now;
+
+		return true;
+	}
+
+	private static void acquire(RunSlots slots) {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a run "
+					+ "slot");
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not take a run slot: "
+					+ e.getMessage());
+		}
+	}
+
+	private static void release(RunSlots slots) {
+		try {
+			slots.release();
+		} catch (IOException e) {
+			System.err.println("Could not give back a run slot: "
+					+ e.getMessage());
+		}
+	}
+
+	// take a slot on the least loaded server not yet tried
+	private synchronized Member place(List<Member> exclude) {
+		Member best = null;
+		for (Member m : members) {
+			if (!exclude.contains(m)
+					&& (best == null || m.free() > best.free())) {
+				best = m;
+			}
+		}
+		best.active.incrementAndGet();
+
+		return best;
+	}
+
+	/**
+	 * Give back the slot a run was using once it has been deleted. A run
+	 * that has finished but is still on its server counts against the
+	 * server's run limit, so holds on to its slot until then.
+	 */
+	void deleted(UUID uuid) {
+		Member m = owners.remove(uuid);
+		if (m != null) {
+			m.active.decrementAndGet();
+		}
+		m = admitted.remove(uuid);
+		if (m != null && m.slots != null) {
+			release(m.slots);
+		}
+	}
+
+	/**
+	 * @return the server a run is on, or null if it is not known.
+	 */
+	Server getServer(UUID uuid) {
+		Member m = owners.get(uuid);
+		if (m != null) {
+			return m.server;
+		}
+
+		return members.size() == 1 ? members.get(0).server : null;
+	}
+
+	Server getServer(Run run) {
+		return getServer(run.getUUID());
+	}
+
+	/**
+	 * Get the runs on every server, all at once, noting which server each is
+	 * on. Servers that cannot be reached are reported and left out.
+	 */
+	Collection<Run> getRuns() {
+		List<Future<Collection<Run>>> futures = new ArrayList<Future<Collection<Run>>>();
+		for (final Member m : members) {
+			futures.add(executor.submit(new Callable<Collection<Run>>() {
+				public Collection<Run> call() {
+					long t = Metrics.start();
+					Collection<Run> runs = m.server.getRuns();
+					Metrics.stop("getRuns", t);
+					for (Run run : runs) {
+						owners.putIfAbsent(run.getUUID(), m);
+					}
+
+					return runs;
+				}
+			}));
+		}
+
+		List<Run> all = new ArrayList<Run>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				all.addAll(futures.get(i).get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				System.err.format("Could not list runs on %s: %s\n", members
+						.get(i).server.getUri(), e.getCause());
+			}
+		}
+
+		return all;
+	}
+
+	/**
+	 * Delete every run on every server, all at once. Servers that cannot be
+	 * reached are reported and left alone.
+	 */
+	void deleteAllRuns() {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Member m : members) {
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					long t = Metrics.start();
+					m.server.deleteAllRuns();
+					Metrics.stop("deleteAllRuns", t);
+					m.active.set(0);
+				}
+			}));
+		}
+
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				System.err.format("Could not delete runs on %s: %s\n", members
+						.get(i).server.getUri(), e.getCause());
+			}
+		}
+		owners.clear();
+	}
+
+	/**
+	 * @return the run with the given id on any of the servers, or null.
+	 */
+	Run findRun(UUID uuid) {
+		for (Run run : getRuns()) {
+			if (run.getUUID().equals(uuid)) {
+				return run;
+			}
+		}
+
+		return null;
+	}
+
+	private static final class Member {
+		final Server server;
+		final AtomicInteger active;
+		volatile int limit;
+		volatile RunSlots slots;
+
+		Member(Server server) {
+			this.server = server;
+			this.active = new AtomicInteger();
+			this.limit = 0;
+		}
+
+		int free() {
+			return limit - active.get();
+		}
+
+		void refresh() {
+			long t = Metrics.start();
+			int l = server.getRunLimit();
+			Metrics.stop("getRunLimit", t);
+			t = Metrics.start();
+			int a = server.getRuns().size();
+			Metrics.stop("getRuns", t);
+
+			limit = l;
+			active.set(a);
+		}
+
+		// treat as full until the next refresh
+		void full() {
+			active.set(Math.max(active.get(), limit));
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A stub server that behaves more like a real one on a real network: every
+ * request can be delayed by a fixed latency plus random jitter, request and
+ * response bodies can be limited to a set bandwidth per connection, a
+ * fraction of requests can be failed, and run times can be spread out.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class ServerSimulator extends TavernaServerStub {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final Random random;
+	private final AtomicLong requests;
+	private final AtomicLong errors;
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+
+	private volatile long latency;
+	private volatile long jitter;
+	private volatile long bandwidth;
+	private volatile double errorRate;
+	private volatile long runDurationSpread;
+
+	ServerSimulator(int port) throws IOException {
+		super(port);
+
+		random = new Random();
+		requests = new AtomicLong();
+		errors = new AtomicLong();
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+	}
+
+	/**
+	 * @param millis
+	 *            added to the time taken by every request.
+	 */
+	void setLatency(long millis) {
+		this.latency = millis;
+	}
+
+	/**
+	 * @param millis
+	 *            the most random time added to the latency of each request.
+	 */
+	void setJitter(long millis) {
+		this.jitter = millis;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the rate bodies are sent and received at on each
+	 *            connection, or 0 for no limit.
+	 */
+	void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @param rate
+	 *            the fraction of requests, from 0 to 1, answered with a 503
+	 *            error.
+	 */
+	void setErrorRate(double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * @param millis
+	 *            the most random time added to the run duration of each run.
+	 */
+	void setRunDurationSpread(long millis) {
+		this.runDurationSpread = millis;
+	}
+
+	long getRequestCount() {
+		return requests.get();
+	}
+
+	long getErrorCount() {
+		return errors.get();
+	}
+
+	long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	long getRunDuration() {
+		long spread = runDurationSpread;
+		if (spread <= 0) {
+			return super.getRunDuration();
+		}
+
+		return super.getRunDuration() + (long) (random.nextDouble() * spread);
+	}
+
+	@Override
+	boolean beforeRequest(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+
+		long delay = latency;
+		if (jitter > 0) {
+			delay += (long) (random.nextDouble() * jitter);
+		}
+		pause(delay);
+
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			errors.incrementAndGet();
+			exchange.getRequestBody().close();
+			send(exchange, 503, "text/plain", "Simulated failure");
+			return false;
+		}
+
+		exchange.setStreams(new ThrottledInputStream(exchange
+				.getRequestBody()), null);
+
+		return true;
+	}
+
+	@Override
+	void write(OutputStream out, byte[] body) throws IOException {
+		for (int off = 0; off < body.length; off += CHUNK_SIZE) {
+			int len = Math.min(CHUNK_SIZE, body.length - off);
+			out.write(body, off, len);
+			throttle(len);
+			bytesOut.addAndGet(len);
+		}
+	}
+
+	// sleep for as long as len bytes take at the set bandwidth
+	private void throttle(int len) throws IOException {
+		long rate = bandwidth;
+		if (rate > 0) {
+			pause(len * 1000L / rate);
+		}
+	}
+
+	private static void pause(long millis) throws IOException {
+		if (millis <= 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private final class ThrottledInputStream extends FilterInputStream {
+
+		ThrottledInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counted(1);
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, Math.min(len, CHUNK_SIZE));
+			if (n > 0) {
+				counted(n);
+			}
+
+			return n;
+		}
+
+		private void counted(int n) throws IOException {
+			bytesIn.addAndGet(n);
+			throttle(n);
+		}
+	}
+}
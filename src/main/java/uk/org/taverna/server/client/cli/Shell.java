@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+
+/**
+ * Runs other programs from commands read on standard input, one per line,
+ * all within the same JVM. Connections to servers are kept open between
+ * commands and several commands may run at once, which makes this much
+ * cheaper than starting a new JVM for each command in a script. Each line a
+ * command writes to standard output is prefixed with the command's number,
+ * as are the lines saying how each command ended.
+ * 
+ * @author Robert Haines
+ * 
+ */
+public final class Shell extends ConsoleApp {
+
+	private static final String NAME = "Shell";
+	private static final String EXTRA_USAGE = "Each line of input is a "
+			+ "program name followed by its options, e.g. 'ServerInfo -h'. If "
+			+ "server-address is given it is used for any command that does "
+			+ "not name a server. Output lines are prefixed with [N], the "
+			+ "number of the command that wrote them. The command 'wait' "
+			+ "waits for all running commands to finish and 'exit' ends the "
+			+ "shell. Options that set up the whole process, such as "
+			+ "--metrics, --events and the connection options, are given to "
+			+ "Shell itself and apply to every command.";
+
+	private static final int DEFAULT_PARALLELISM = 8;
+
+	private final AtomicInteger commandCount;
+
+	public Shell() {
+		super(NAME, null, EXTRA_USAGE);
+
+		commandCount = new AtomicInteger();
+	}
+
+	@Override
+	public void run(CommandLine line) {
+		int parallelism = DEFAULT_PARALLELISM;
+		if (line.hasOption("parallel")) {
+			try {
+				parallelism = Integer.parseInt(line.getOptionValue("parallel"));
+			} catch (NumberFormatException e) {
+				parallelism = 0;
+			}
+			if (parallelism < 1) {
+				System.out.println("Option 'parallel' must be a positive number.");
+				showHelpAndExit(1);
+			}
+		}
+
+		String defaultServer = null;
+		for (String arg : line.getArgs()) {
+			if (isServerAddress(arg)) {
+				defaultServer = arg;
+			}
+		}
+
+		ExecutorService executor = Workers.newFixedThreadPool("shell",
+				parallelism);
+		Semaphore running = new Semaphore(parallelism);
+		PrintStream stdout = System.out;
+		TaggedOutput tagged = new TaggedOutput(stdout);
+		System.setOut(new PrintStream(tagged, true));
+		setEmbedded(true);
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					System.in));
+			String command;
+			while ((command = in.readLine()) != null) {
+				List<String> words = split(command);
+				if (words.isEmpty() || words.get(0).startsWith("#")) {
+					continue;
+				}
+
+				String program = words.get(0);
+				if (program.equals("exit") || program.equals("quit")) {
+					break;
+				} else if (program.equals("wait")) {
+					running.acquireUninterruptibly(parallelism);
+					running.release(parallelism);
+					continue;
+				} else if (program.equals(NAME)) {
+					System.err.println("A shell cannot be run from a shell.");
+					continue;
+				}
+
+				List<String> args = new ArrayList<String>(words.subList(1,
+						words.size()));
+				if (defaultServer != null && !hasServerAddress(args)) {
+					args.add(defaultServer);
+				}
+
+				running.acquireUninterruptibly();
+				executor.execute(new Command(commandCount.incrementAndGet(),
+						program, args.toArray(new String[args.size()]), running,
+						tagged));
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot read commands: " + e.getMessage());
+		} finally {
+			executor.shutdown();
+			running.acquireUninterruptibly(parallelism);
+			setEmbedded(false);
+			System.setOut(stdout);
+		}
+	}
+
+	private static boolean isServerAddress(String arg) {
+		return Connections.parseServerAddress(arg) != null;
+	}
+
+	private static boolean hasServerAddress(List<String> args) {
+		for (String arg : args) {
+			if (isServerAddress(arg)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Split a command line into words on white space. Words may be quoted
+	 * with single or double quotes to include white space in them.
+	 */
+	static List<String> split(String command) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		char quote = 0;
+		boolean inWord = false;
+
+		for (char c : command.toCharArray()) {
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					word.append(c);
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+				inWord = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inWord) {
+					words.add(word.toString());
+					word.setLength(0);
+					inWord = false;
+				}
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+		}
+		if (inWord) {
+			words.add(word.toString());
+		}
+
+		return words;
+	}
+
+	@Override
+	@SuppressWarnings("static-access")
+	public List<Option> registerOptions() {
+		ArrayList<Option> opts = new ArrayList<Option>();
+
+		opts.add(OptionBuilder
+				.withLongOpt("parallel")
+				.withDescription(
+						"Run up to N commands at once. Default "
+								+ DEFAULT_PARALLELISM).hasArg()
+				.withArgName("N").create());
+
+		return opts;
+	}
+
+	private static final class Command implements Runnable {
+		private final int id;
+		private final String program;
+		private final String[] args;
+		private final Semaphore running;
+		private final TaggedOutput output;
+
+		Command(int id, String program, String[] args, Semaphore running,
+				TaggedOutput output) {
+			this.id = id;
+			this.program = program;
+			this.args = args;
+			this.running = running;
+			this.output = output;
+		}
+
+		public void run() {
+			int exitcode = 0;
+			long start = System.currentTimeMillis();
+			output.begin(id);
+			try {
+				new AppDispatcher().run(program, args);
+			} catch (Exit e) {
+				exitcode = e.getExitCode();
+			} catch (RuntimeException e) {
+				System.err.format("[%d] %s failed: %s\n", id, program, e);
+				exitcode = 1;
+			} catch (Error e) {
+				System.err.format("[%d] %s failed: %s\n", id, program, e);
+				exitcode = 1;
+				throw e;
+			} finally {
+				output.end();
+				System.out.format(
+						"[%d] %s %s finished with exit code %d in %.3fs\n",
+						id, program, Arrays.toString(args), exitcode,
+						(System.currentTimeMillis() - start) / 1000.0);
+				running.release();
+			}
+		}
+	}
+
+	/**
+	 * Standard output while commands run. Each line written by a command, or
+	 * by any thread it starts, is held until it is complete and then written
+	 * whole with the command's number in front, so that the output of
+	 * commands running at once can be told apart. Anything else is written
+	 * as it is.
+	 */
+	private static final class TaggedOutput extends OutputStream {
+		private final PrintStream out;
+		private final InheritableThreadLocal<Line> current;
+
+		TaggedOutput(PrintStream out) {
+			this.out = out;
+			this.current = new InheritableThreadLocal<Line>();
+		}
+
+		void begin(int id) {
+			current.set(new Line(id));
+		}
+
+		// write out any part line, and tag nothing written after this
+		void end() {
+			Line line = current.get();
+			current.remove();
+			if (line != null) {
+				synchronized (line) {
+					if (line.size() > 0) {
+						emit(line);
+					}
+					line.closed = true;
+				}
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			Line line = current.get();
+			if (line != null) {
+				synchronized (line) {
+					if (!line.closed) {
+						for (int i = off; i < off + len; i++) {
+							if (b[i] == '\n') {
+								emit(line);
+							} else {
+								line.write(b[i]);
+							}
+						}
+						return;
+					}
+				}
+			}
+
+			synchronized (out) {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() {
+			out.flush();
+		}
+
+		private void emit(Line line) {
+			synchronized (out) {
+				out.print("[" + line.id + "] ");
+				out.write(line.toByteArray(), 0, line.size());
+				out.println();
+			}
+			line.reset();
+		}
+
+		private static final class Line extends ByteArrayOutputStream {
+			final int id;
+			boolean closed;
+
+			Line(int id) {
+				this.id = id;
+			}
+		}
+	}
+}
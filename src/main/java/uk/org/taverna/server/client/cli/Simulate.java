@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+
+/**
+ * Runs a simulated Taverna Server in this process so that the other programs
+ * can be pointed at it, with no real server or network needed. Latency,
+ * bandwidth, error rate and run times can all be set.
+ * 
+ * @author Robert Haines
+ * 
+ */
+public final class Simulate extends ConsoleApp {
+
+	private static final String NAME = "Simulate";
+	private static final String EXTRA_USAGE = "No server-address is needed. "
+			+ "The simulator runs until it is interrupted or for the time "
+			+ "given by --for. Bandwidth is in bytes per second and may end "
+			+ "in k or m, e.g. 512k.";
+
+	public Simulate() {
+		super(NAME, null, EXTRA_USAGE);
+	}
+
+	@Override
+	public void run(CommandLine line) {
+		final ServerSimulator sim;
+		long runFor = 0;
+		try {
+			sim = new ServerSimulator(Integer.parseInt(line.getOptionValue(
+					"port", "0")));
+			sim.setLatency(getDuration(line, "latency", 0));
+			sim.setJitter(getDuration(line, "jitter", 0));
+			sim.setBandwidth(parseBytes(line.getOptionValue("bandwidth", "0")));
+			sim.setErrorRate(Double.parseDouble(line.getOptionValue(
+					"error-rate", "0")));
+			sim.setRunDuration(getDuration(line, "run-time", 1000));
+			sim.setRunDurationSpread(getDuration(line, "run-time-spread", 0));
+			sim.setRunLimit(Integer.parseInt(line.getOptionValue("run-limit",
+					"100")));
+			runFor = getDuration(line, "for", 0);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad option: " + e.getMessage());
+			showHelpAndExit(1);
+			return;
+		} catch (IOException e) {
+			System.out.println("Cannot start simulator: " + e.getMessage());
+			exit(1);
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		Thread shutdown = new Thread() {
+			@Override
+			public void run() {
+				sim.stop();
+				report(sim, System.currentTimeMillis() - start);
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdown);
+
+		sim.start();
+		System.out.println("Simulated server running at " + sim.getUri());
+
+		try {
+			if (runFor > 0) {
+				Thread.sleep(runFor);
+			} else {
+				Thread.sleep(Long.MAX_VALUE);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		Runtime.getRuntime().removeShutdownHook(shutdown);
+		shutdown.run();
+	}
+
+	private static void report(ServerSimulator sim, long elapsed) {
+		System.out.println("Simulator stopped after "
+				+ Durations.format(elapsed - elapsed % 1000));
+		System.out.format("   Requests: %d (%d failed on purpose)\n",
+				sim.getRequestCount(), sim.getErrorCount());
+		System.out.format("   Bytes in: %d\n", sim.getBytesIn());
+		System.out.format("  Bytes out: %d\n", sim.getBytesOut());
+		System.out.format("  Runs left: %d\n", sim.getRunCount());
+	}
+
+	private static long getDuration(CommandLine line, String option, long def) {
+		if (!line.hasOption(option)) {
+			return def;
+		}
+
+		return Durations.parse(line.getOptionValue(option));
+	}
+
+	@Override
+	@SuppressWarnings("static-access")
+	public List<Option> registerOptions() {
+		ArrayList<Option> opts = new ArrayList<Option>();
+
+		opts.add(OptionBuilder.withLongOpt("port")
+				.withDescription("Listen on PORT. Default is any free port")
+				.hasArg().withArgName("PORT").create());
+
+		opts.add(OptionBuilder.withLongOpt("latency")
+				.withDescription("Delay every request by DURATION, e.g. 50ms")
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("jitter")
+				.withDescription(
+						"Add up to DURATION more delay, at random, to each request")
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("bandwidth")
+				.withDescription(
+						"Limit each connection to BYTES per second. Default "
+								+ "is no limit").hasArg().withArgName("BYTES")
+				.create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("error-rate")
+				.withDescription(
+						"Fail this fraction of requests, from 0 to 1, with a "
+								+ "503 error").hasArg()
+				.withArgName("FRACTION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("run-time")
+				.withDescription(
+						"How long each run takes once started. Default 1s")
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("run-time-spread")
+				.withDescription(
+						"Add up to DURATION more, at random, to each run time")
+				.hasArg().withArgName("DURATION").create());
+
+		opts.add(OptionBuilder.withLongOpt("run-limit")
+				.withDescription("The server's run limit. Default 100")
+				.hasArg().withArgName("N").create());
+
+		opts.add(OptionBuilder
+				.withLongOpt("for")
+				.withDescription(
+						"Stop after DURATION instead of running until "
+								+ "interrupted").hasArg()
+				.withArgName("DURATION").create());
+
+		return opts;
+	}
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand in for a Taverna Server, speaking the parts of the
+ * version 2.2 REST API that the client library and these tools use: creating,
+ * listing and deleting runs, setting inputs, uploading files, starting runs
+ * and reading their status, console output and results. Nothing is actually
+ * executed; a started run finishes after a set time and each of its input
+ * ports is copied to an output port of the same name.
+ * 
+ * @author Robert Haines
+ * 
+ */
+class TavernaServerStub {
+
+	static final String REST_NS = "http://ns.taverna.org.uk/2010/xml/server/rest/";
+	static final String SERVER_NS = "http://ns.taverna.org.uk/2010/xml/server/";
+	static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+	private static final String CONTEXT = "/taverna";
+	private static final String REST = CONTEXT + "/rest";
+	private static final long EXPIRY_TIME = 24 * 60 * 60 * 1000;
+
+	// bodies smaller than this are not worth compressing
+	private static final int MIN_COMPRESS = 1024;
+	private static final String GZIP = "gzip";
+
+	private static final Pattern INPUT_PORTS = Pattern.compile(
+			"<inputPorts>(.*?)</inputPorts>", Pattern.DOTALL);
+	private static final Pattern PORT_NAME = Pattern.compile(
+			"<port>\\s*<name>([^<]*)</name>", Pattern.DOTALL);
+	private static final Pattern INPUT_VALUE = Pattern.compile(
+			"<(?:\\w+:)?(value|file)>(.*?)</(?:\\w+:)?\\1>", Pattern.DOTALL);
+	private static final Pattern UPLOAD = Pattern.compile(
+			"<(?:\\w+:)?upload[^>]*?name=\"([^\"]*)\"[^>]*>(.*?)</(?:\\w+:)?upload>",
+			Pattern.DOTALL);
+	private static final Pattern WORKFLOW = Pattern.compile(
+			"^\\s*<(?:\\w+:)?workflow[^>]*>(.*)</(?:\\w+:)?workflow>\\s*$",
+			Pattern.DOTALL);
+
+	private final HttpServer http;
+	private final ExecutorService handlers;
+	private final ScheduledExecutorService clock;
+	private final ConcurrentMap<UUID, StubRun> runs;
+
+	private int runLimit;
+	private long runDuration;
+
+	/**
+	 * Create a stub listening on the given port of the loopback interface. Use
+	 * port 0 to pick any free port.
+	 */
+	TavernaServerStub(int port) throws IOException {
+		this.runs = new ConcurrentHashMap<UUID, StubRun>();
+		this.runLimit = 100;
+		this.runDuration = 1000;
+
+		this.handlers = Workers.newCachedThreadPool("stub", true);
+		this.clock = new ScheduledThreadPoolExecutor(1, Workers.factory(
+				"stub-clock", true));
+		this.http = HttpServer.create(new InetSocketAddress("127.0.0.1", port),
+				0);
+		http.setExecutor(handlers);
+		http.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					dispatch(exchange);
+				} catch (RuntimeException e) {
+					send(exchange, 500, "text/plain", e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	void start() {
+		http.start();
+	}
+
+	void stop() {
+		http.stop(0);
+		handlers.shutdownNow();
+		clock.shutdownNow();
+	}
+
+	/**
+	 * @return the address to give to the tools, e.g.
+	 *         http://127.0.0.1:PORT/taverna
+	 */
+	URI getUri() {
+		return URI.create("http://127.0.0.1:" + http.getAddress().getPort()
+				+ CONTEXT);
+	}
+
+	void setRunLimit(int runLimit) {
+		this.runLimit = runLimit;
+	}
+
+	/**
+	 * @param millis
+	 *            how long a run takes to finish once started.
+	 */
+	void setRunDuration(long millis) {
+		this.runDuration = millis;
+	}
+
+	int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Hook for subclasses to delay, throttle or fail requests.
+	 * 
+	 * @return false if a response has already been sent and the request
+	 *         should not be handled.
+	 */
+	boolean beforeRequest(HttpExchange exchange) throws IOException {
+		return true;
+	}
+
+	// overridden by subclasses to vary how long each run takes
+	long getRunDuration() {
+		return runDuration;
+	}
+
+	private void dispatch(HttpExchange exchange) throws IOException {
+		if (!beforeRequest(exchange)) {
+			return;
+		}
+
+		String path = exchange.getRequestURI().getPath();
+		while (path.endsWith("/") && path.length() > 1) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (!path.startsWith(REST)) {
+			send(exchange, 404, "text/plain", "Not found");
+			return;
+		}
+
+		String[] parts = path.substring(REST.length()).split("/");
+		List<String> segments = new ArrayList<String>();
+		for (String p : parts) {
+			if (p.length() != 0) {
+				segments.add(p);
+			}
+		}
+
+		String method = exchange.getRequestMethod();
+		if (segments.isEmpty()) {
+			sendXml(exchange, "<t2sr:serverDescription " + namespaces()
+					+ " t2s:serverVersion=\"2.2\">" + link("runs", "runs")
+					+ link("policy", "policy") + "</t2sr:serverDescription>");
+		} else if (segments.get(0).equals("policy")) {
+			policy(exchange, segments);
+		} else if (segments.get(0).equals("runs")) {
+			if (segments.size() == 1) {
+				if (method.equals("POST")) {
+					createRun(exchange);
+				} else {
+					listRuns(exchange);
+				}
+			} else {
+				StubRun run = null;
+				try {
+					run = runs.get(UUID.fromString(segments.get(1)));
+				} catch (IllegalArgumentException e) {
+					// not a run id
+				}
+				if (run == null) {
+					send(exchange, 404, "text/plain", "No such run");
+				} else {
+					run(exchange, run, segments.subList(2, segments.size()));
+				}
+			}
+		} else {
+			send(exchange, 404, "text/plain", "Not found");
+		}
+	}
+
+	private void policy(HttpExchange exchange, List<String> segments)
+			throws IOException {
+		if (segments.size() == 1) {
+			sendXml(exchange, "<t2sr:policyDescription " + namespaces() + ">"
+					+ link("runLimit", "policy/runLimit")
+					+ link("permittedWorkflows", "policy/permittedWorkflows")
+					+ link("permittedListenerTypes",
+							"policy/permittedListenerTypes")
+					+ "</t2sr:policyDescription>");
+		} else if (segments.get(1).equals("runLimit")) {
+			sendText(exchange, Integer.toString(runLimit));
+		} else if (segments.get(1).equals("permittedWorkflows")) {
+			sendXml(exchange, "<t2sr:permittedWorkflows " + namespaces()
+					+ "/>");
+		} else if (segments.get(1).equals("permittedListenerTypes")) {
+			sendXml(exchange, "<t2sr:permittedListenerTypes " + namespaces()
+					+ "><t2sr:type>io</t2sr:type></t2sr:permittedListenerTypes>");
+		} else {
+			send(exchange, 404, "text/plain", "Not found");
+		}
+	}
+
+	private void createRun(HttpExchange exchange) throws IOException {
+		String body = new String(read(exchange), WorkflowLoader.UTF8);
+		if (runs.size() >= runLimit) {
+			send(exchange, 503, "text/plain", "Run limit reached");
+			return;
+		}
+
+		Matcher m = WORKFLOW.matcher(body);
+		StubRun run = new StubRun(m.matches() ? m.group(1) : body);
+		runs.put(run.uuid, run);
+
+		exchange.getResponseHeaders().set("Location",
+				resource("runs/" + run.uuid));
+		send(exchange, 201, "text/plain", "");
+	}
+
+	private void listRuns(HttpExchange exchange) throws IOException {
+		StringBuilder sb = new StringBuilder("<t2sr:runList " + namespaces()
+				+ ">");
+		for (UUID uuid : runs.keySet()) {
+			sb.append("<t2sr:run xlink:href=\"")
+					.append(resource("runs/" + uuid)).append("\">")
+					.append(uuid).append("</t2sr:run>");
+		}
+		sb.append("</t2sr:runList>");
+		sendXml(exchange, sb.toString());
+	}
+
+	private void run(HttpExchange exchange, StubRun run, List<String> segments)
+			throws IOException {
+		String method = exchange.getRequestMethod();
+		String base = "runs/" + run.uuid + "/";
+
+		if (segments.isEmpty()) {
+			if (method.equals("DELETE")) {
+				runs.remove(run.uuid);
+				sendEmpty(exchange, 204);
+			} else {
+				sendXml(exchange, "<t2sr:runDescription " + namespaces()
+						+ " xlink:href=\"" + resource(base) + "\">"
+						+ link("expiry", base + "expiry")
+						+ link("creationWorkflow", base + "workflow")
+						+ link("createTime", base + "createTime")
+						+ link("startTime", base + "startTime")
+						+ link("finishTime", base + "finishTime")
+						+ link("status", base + "status")
+						+ link("workingDirectory", base + "wd")
+						+ link("inputs", base + "input")
+						+ link("output", base + "output")
+						+ link("securityContext", base + "security")
+						+ "<t2sr:listeners xlink:href=\""
+						+ resource(base + "listeners") + "\">"
+						+ link("listener", base + "listeners/io")
+						+ "</t2sr:listeners></t2sr:runDescription>");
+			}
+			return;
+		}
+
+		String resource = segments.get(0);
+		synchronized (run) {
+			if (resource.equals("expiry")) {
+				if (method.equals("PUT")) {
+					run.expiry = new Date(System.currentTimeMillis()
+							+ EXPIRY_TIME);
+				}
+				sendText(exchange, format(run.expiry));
+			} else if (resource.equals("workflow")) {
+				sendXml(exchange, "<t2s:workflow " + namespaces() + ">"
+						+ run.workflow + "</t2s:workflow>");
+			} else if (resource.equals("createTime")) {
+				sendText(exchange, format(run.created));
+			} else if (resource.equals("startTime")) {
+				sendText(exchange, format(run.started));
+			} else if (resource.equals("finishTime")) {
+				sendText(exchange, format(run.finished));
+			} else if (resource.equals("status")) {
+				if (method.equals("PUT")) {
+					String status = new String(read(exchange),
+							WorkflowLoader.UTF8).trim();
+					if (status.equals("Operating")) {
+						start(run);
+					}
+				}
+				sendText(exchange, run.status);
+			} else if (resource.equals("input")) {
+				input(exchange, run, segments.subList(1, segments.size()));
+			} else if (resource.equals("output")) {
+				if (method.equals("PUT")) {
+					run.baclavaOut = new String(read(exchange),
+							WorkflowLoader.UTF8).trim();
+				}
+				sendText(exchange, run.baclavaOut == null ? ""
+						: run.baclavaOut);
+			} else if (resource.equals("listeners")) {
+				listeners(exchange, run, segments.subList(1, segments.size()));
+			} else if (resource.equals("wd")) {
+				workingDirectory(exchange, run,
+						join(segments.subList(1, segments.size())));
+			} else if (resource.equals("security")) {
+				sendXml(exchange, "<t2sr:securityDescriptor " + namespaces()
+						+ "/>");
+			} else {
+				send(exchange, 404, "text/plain", "Not found");
+			}
+		}
+	}
+
+	private void input(HttpExchange exchange, StubRun run,
+			List<String> segments) throws IOException {
+		String base = "runs/" + run.uuid + "/input/";
+		String method = exchange.getRequestMethod();
+
+		if (segments.isEmpty()) {
+			sendXml(exchange, "<t2sr:runInputs " + namespaces() + ">"
+					+ link("expected", base + "expected")
+					+ link("baclava", base + "baclava")
+					+ "</t2sr:runInputs>");
+		} else if (segments.get(0).equals("expected")) {
+			StringBuilder sb = new StringBuilder("<t2sr:inputDescription "
+					+ namespaces() + ">");
+			for (String port : expectedInputs(run.workflow)) {
+				sb.append("<t2sr:input t2sr:name=\"").append(port)
+						.append("\" xlink:href=\"")
+						.append(resource(base + "input/" + port))
+						.append("\"/>");
+			}
+			sb.append("</t2sr:inputDescription>");
+			sendXml(exchange, sb.toString());
+		} else if (segments.get(0).equals("baclava")) {
+			if (method.equals("PUT")) {
+				run.baclavaIn = new String(read(exchange), WorkflowLoader.UTF8)
+						.trim();
+			}
+			sendText(exchange, run.baclavaIn == null ? "" : run.baclavaIn);
+		} else if (segments.get(0).equals("input") && segments.size() == 2) {
+			String port = segments.get(1);
+			if (method.equals("PUT")) {
+				Matcher m = INPUT_VALUE.matcher(new String(read(exchange),
+						WorkflowLoader.UTF8));
+				if (!m.find()) {
+					send(exchange, 400, "text/plain", "Bad input");
+					return;
+				}
+				String value = unescape(m.group(2));
+				if (m.group(1).equals("file")) {
+					run.inputFiles.put(port, value);
+					run.inputs.remove(port);
+				} else {
+					run.inputs.put(port, value);
+					run.inputFiles.remove(port);
+				}
+			}
+			String file = run.inputFiles.get(port);
+			sendXml(exchange, "<t2sr:runInput " + namespaces() + ">"
+					+ (file != null ? "<t2sr:file>" + escape(file)
+							+ "</t2sr:file>" : "<t2sr:value>"
+							+ escape(run.inputs.get(port)) + "</t2sr:value>")
+					+ "</t2sr:runInput>");
+		} else {
+			send(exchange, 404, "text/plain", "Not found");
+		}
+	}
+
+	private void listeners(HttpExchange exchange, StubRun run,
+			List<String> segments) throws IOException {
+		String base = "runs/" + run.uuid + "/listeners/io/properties/";
+		if (segments.size() < 3) {
+			sendXml(exchange, "<t2sr:listener " + namespaces()
+					+ " t2sr:name=\"io\" t2sr:type=\"io\">"
+					+ "<t2sr:properties>" + link("property", base + "stdout")
+					+ link("property", base + "stderr")
+					+ link("property", base + "exitcode")
+					+ "</t2sr:properties></t2sr:listener>");
+			return;
+		}
+
+		String property = segments.get(2);
+		if (property.equals("stdout")) {
+			sendText(exchange, run.stdout);
+		} else if (property.equals("stderr")) {
+			sendText(exchange, run.stderr);
+		} else if (property.equals("exitcode")) {
+			sendText(exchange, run.exitcode == null ? "" : run.exitcode
+					.toString());
+		} else {
+			send(exchange, 404, "text/plain", "Not found");
+		}
+	}
+
+	private void workingDirectory(HttpExchange exchange, StubRun run,
+			String path) throws IOException {
+		String method = exchange.getRequestMethod();
+		if (method.equals("PUT")) {
+			run.files.put(path, read(exchange));
+			exchange.getResponseHeaders().set("Location",
+					resource("runs/" + run.uuid + "/wd/" + path));
+			sendEmpty(exchange, 201);
+		} else if (method.equals("POST")) {
+			Matcher m = UPLOAD.matcher(new String(read(exchange),
+					WorkflowLoader.UTF8));
+			if (m.find()) {
+				String name = path.length() == 0 ? m.group(1) : path + "/"
+						+ m.group(1);
+				run.files.put(name,
+						decodeBase64(m.group(2)));
+				exchange.getResponseHeaders().set("Location",
+						resource("runs/" + run.uuid + "/wd/" + name));
+			}
+			sendEmpty(exchange, 201);
+		} else if (method.equals("DELETE")) {
+			run.files.remove(path);
+			sendEmpty(exchange, 204);
+		} else if (run.files.containsKey(path)) {
+			send(exchange, 200, "application/octet-stream", run.files.get(path));
+		} else {
+			// a directory, if anything is under it
+			String prefix = path.length() == 0 ? "" : path + "/";
+			SortedMap<String, Boolean> entries = new TreeMap<String, Boolean>();
+			for (String name : run.files.keySet()) {
+				if (name.startsWith(prefix)) {
+					String rest = name.substring(prefix.length());
+					int slash = rest.indexOf('/');
+					entries.put(slash == -1 ? rest : rest.substring(0, slash),
+							slash != -1);
+				}
+			}
+			if (entries.isEmpty() && path.length() != 0) {
+				send(exchange, 404, "text/plain", "No such file");
+				return;
+			}
+
+			StringBuilder sb = new StringBuilder("<t2sr:directoryContents "
+					+ namespaces() + ">");
+			for (Map.Entry<String, Boolean> e : entries.entrySet()) {
+				String tag = e.getValue() ? "t2s:dir" : "t2s:file";
+				sb.append('<').append(tag).append(" xlink:href=\"")
+						.append(resource("runs/" + run.uuid + "/wd/" + prefix
+								+ e.getKey())).append("\" t2s:name=\"")
+						.append(e.getKey()).append("\">").append(prefix)
+						.append(e.getKey()).append("</").append(tag)
+						.append('>');
+			}
+			sb.append("</t2sr:directoryContents>");
+			sendXml(exchange, sb.toString());
+		}
+	}
+
+	private void start(final StubRun run) {
+		if (!run.status.equals("Initialized")) {
+			return;
+		}
+
+		run.status = "Operating";
+		run.started = new Date();
+		clock.schedule(new Runnable() {
+			public void run() {
+				finish(run);
+			}
+		}, getRunDuration(), TimeUnit.MILLISECONDS);
+	}
+
+	private void finish(StubRun run) {
+		synchronized (run) {
+			// outputs are just the inputs, under the same port names
+			for (Map.Entry<String, String> e : run.inputs.entrySet()) {
+				run.files.put("out/" + e.getKey(),
+						e.getValue().getBytes(WorkflowLoader.UTF8));
+			}
+			for (Map.Entry<String, String> e : run.inputFiles.entrySet()) {
+				byte[] data = run.files.get(e.getValue());
+				if (data != null) {
+					run.files.put("out/" + e.getKey(), data);
+				}
+			}
+			if (run.baclavaOut != null) {
+				run.files.put(run.baclavaOut, baclava(run).getBytes(
+						WorkflowLoader.UTF8));
+			}
+
+			run.stdout = "Workflow run " + run.uuid + " finished\n";
+			run.exitcode = 0;
+			run.finished = new Date();
+			run.status = "Finished";
+		}
+	}
+
+	private String baclava(StubRun run) {
+		StringBuilder sb = new StringBuilder(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+						+ "<b:dataThingMap xmlns:b=\"http://org.embl.ebi.escience/baclava/0.1alpha\">\n");
+		for (String name : run.files.keySet()) {
+			if (name.startsWith("out/")) {
+				sb.append("  <b:dataThing key=\"")
+						.append(name.substring(4))
+						.append("\"><b:myGridDataDocument><b:dataElement><b:dataElementData>")
+						.append(encodeBase64(run.files.get(name)))
+						.append("</b:dataElementData></b:dataElement></b:myGridDataDocument></b:dataThing>\n");
+			}
+		}
+		sb.append("</b:dataThingMap>\n");
+
+		return sb.toString();
+	}
+
+	static List<String> expectedInputs(String workflow) {
+		List<String> ports = new ArrayList<String>();
+		Matcher block = INPUT_PORTS.matcher(workflow);
+		if (block.find()) {
+			Matcher port = PORT_NAME.matcher(block.group(1));
+			while (port.find()) {
+				ports.add(port.group(1).trim());
+			}
+		}
+
+		return ports;
+	}
+
+	private String resource(String path) {
+		return getUri() + "/rest/" + path;
+	}
+
+	private String link(String name, String path) {
+		return "<t2sr:" + name + " xlink:href=\"" + resource(path) + "\"/>";
+	}
+
+	private static String namespaces() {
+		return "xmlns:t2sr=\"" + REST_NS + "\" xmlns:t2s=\"" + SERVER_NS
+				+ "\" xmlns:xlink=\"" + XLINK_NS + "\"";
+	}
+
+	private static String join(List<String> segments) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : segments) {
+			if (sb.length() != 0) {
+				sb.append('/');
+			}
+			sb.append(s);
+		}
+
+		return sb.toString();
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String unescape(String s) {
+		return s.replace("&lt;", "<").replace("&gt;", ">")
+				.replace("&quot;", "\"").replace("&apos;", "'")
+				.replace("&amp;", "&");
+	}
+
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	static String encodeBase64(byte[] data) {
+		StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < data.length) {
+				b |= data[i + 2] & 0xff;
+			}
+			sb.append(BASE64.charAt((b >> 18) & 0x3f));
+			sb.append(BASE64.charAt((b >> 12) & 0x3f));
+			sb.append(i + 1 < data.length ? BASE64.charAt((b >> 6) & 0x3f) : '=');
+			sb.append(i + 2 < data.length ? BASE64.charAt(b & 0x3f) : '=');
+		}
+
+		return sb.toString();
+	}
+
+	static byte[] decodeBase64(String text) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() * 3 / 4);
+		int bits = 0;
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int v = BASE64.indexOf(text.charAt(i));
+			if (v == -1) {
+				// padding or white space
+				continue;
+			}
+			bits = (bits << 6) | v;
+			count += 6;
+			if (count >= 8) {
+				count -= 8;
+				out.write((bits >> count) & 0xff);
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	private static String format(Date date) {
+		if (date == null) {
+			return "";
+		}
+
+		SimpleDateFormat iso = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		return iso.format(date);
+	}
+
+	static byte[] read(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if (GZIP.equalsIgnoreCase(exchange.getRequestHeaders().getFirst(
+				"Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunResources.copy(in, out);
+		in.close();
+
+		return out.toByteArray();
+	}
+
+	private void sendXml(HttpExchange exchange, String xml) throws IOException {
+		send(exchange, 200, "application/xml", xml);
+	}
+
+	private void sendText(HttpExchange exchange, String text)
+			throws IOException {
+		send(exchange, 200, "text/plain", text);
+	}
+
+	private void sendEmpty(HttpExchange exchange, int code) throws IOException {
+		send(exchange, code, null, (byte[]) null);
+	}
+
+	void send(HttpExchange exchange, int code, String type, String body)
+			throws IOException {
+		send(exchange, code, type,
+				body == null ? null : body.getBytes(WorkflowLoader.UTF8));
+	}
+
+	void send(HttpExchange exchange, int code, String type, byte[] body)
+			throws IOException {
+		if (type != null) {
+			exchange.getResponseHeaders().set("Content-Type", type);
+		}
+
+		if (body == null || body.length == 0) {
+			exchange.sendResponseHeaders(code, -1);
+			return;
+		}
+
+		String accept = exchange.getRequestHeaders().getFirst(
+				"Accept-Encoding");
+		if (body.length >= MIN_COMPRESS && accept != null
+				&& accept.toLowerCase().contains(GZIP)) {
+			ByteArrayOutputStream gz = new ByteArrayOutputStream();
+			GZIPOutputStream zip = new GZIPOutputStream(gz);
+			zip.write(body);
+			zip.close();
+			body = gz.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+		}
+
+		exchange.sendResponseHeaders(code, body.length);
+		OutputStream out = exchange.getResponseBody();
+		write(out, body);
+		out.close();
+	}
+
+	// hook for subclasses to throttle responses
+	void write(OutputStream out, byte[] body) throws IOException {
+		out.write(body);
+	}
+
+	private static final class StubRun {
+		final UUID uuid;
+		final String workflow;
+		final Date created;
+		final Map<String, String> inputs;
+		final Map<String, String> inputFiles;
+		final Map<String, byte[]> files;
+
+		Date expiry;
+		Date started;
+		Date finished;
+		String status;
+		String baclavaIn;
+		String baclavaOut;
+		String stdout;
+		String stderr;
+		Integer exitcode;
+
+		StubRun(String workflow) {
+			this.uuid = UUID.randomUUID();
+			this.workflow = workflow;
+			this.created = new Date();
+			this.expiry = new Date(created.getTime() + EXPIRY_TIME);
+			this.inputs = new TreeMap<String, String>();
+			this.inputFiles = new TreeMap<String, String>();
+			this.files = new ConcurrentHashMap<String, byte[]>();
+			this.status = "Initialized";
+			this.stdout = "";
+			this.stderr = "";
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Lazily reads run ids from a stream, one per line. Anything on a line that
+ * is not a UUID is ignored, as are blank lines.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class UuidReader implements Iterator<UUID>, Closeable {
+
+	private final BufferedReader reader;
+	private UUID next;
+
+	UuidReader(Reader reader) {
+		this.reader = new BufferedReader(reader);
+		this.next = readNext();
+	}
+
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	public UUID next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+
+		UUID current = next;
+		next = readNext();
+
+		return current;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private UUID readNext() {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				for (String word : line.trim().split("\\s+")) {
+					try {
+						return UUID.fromString(word);
+					} catch (IllegalArgumentException e) {
+						// not a UUID, ignore
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read run ids: "
+					+ e.getMessage(), e);
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the threads every program does its work on. On a JVM that has
+ * virtual threads (Java 21 and later) they are used, so that keeping
+ * thousands of runs in flight, each waited on by a thread of its own, costs
+ * little. Elsewhere ordinary threads are used and each pool is capped at
+ * {@value #MAX_PLATFORM_THREADS} threads.
+ * 
+ * Virtual threads are found by reflection so that this still builds and
+ * runs on older JVMs.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class Workers {
+
+	static final int MAX_PLATFORM_THREADS = 256;
+
+	enum Mode {
+		AUTO, VIRTUAL, PLATFORM
+	}
+
+	// Thread.ofVirtual() and Thread.Builder, if this JVM has them
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+
+	private static volatile boolean virtual = isVirtualAvailable();
+
+	private Workers() {
+	}
+
+	static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the mode is not virtual, platform or auto.
+	 */
+	static Mode parseMode(String mode) {
+		try {
+			return Mode.valueOf(mode.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("'" + mode
+					+ "' is not one of virtual, platform or auto");
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if virtual threads are asked for and this JVM does not
+	 *             have them.
+	 */
+	static void setMode(Mode mode) {
+		switch (mode) {
+		case AUTO:
+			virtual = isVirtualAvailable();
+			break;
+		case VIRTUAL:
+			if (!isVirtualAvailable()) {
+				throw new IllegalArgumentException(
+						"Virtual threads need Java 21 or later");
+			}
+			virtual = true;
+			break;
+		case PLATFORM:
+			virtual = false;
+			break;
+		}
+	}
+
+	/**
+	 * A pool of up to the given number of threads. The cap on ordinary
+	 * threads does not apply to virtual ones.
+	 */
+	static ExecutorService newFixedThreadPool(String name, int threads) {
+		if (!virtual) {
+			threads = Math.min(threads, MAX_PLATFORM_THREADS);
+		}
+
+		return Executors.newFixedThreadPool(Math.max(1, threads), factory(
+				name, false));
+	}
+
+	/**
+	 * A pool that makes threads as needed and lets idle ones die off.
+	 */
+	static ExecutorService newCachedThreadPool(String name, boolean daemon) {
+		return Executors.newCachedThreadPool(factory(name, daemon));
+	}
+
+	/**
+	 * Virtual threads are always daemon threads.
+	 */
+	static ThreadFactory factory(final String name, final boolean daemon) {
+		if (virtual) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name
+						+ "-", 0L);
+
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (Exception e) {
+				// fall back to ordinary threads
+				virtual = false;
+			}
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+				t.setDaemon(daemon);
+				return t;
+			}
+		};
+	}
+}
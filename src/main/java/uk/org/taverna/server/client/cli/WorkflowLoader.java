@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads workflow documents from files or streams in linear time. Small files
+ * are read into a single buffer of exactly the right size and large files are
+ * memory mapped. Workflows read from files are cached for the life of the
+ * process, keyed by path, size and modification time, so that submitting the
+ * same workflow again does not read it again. The cache only holds soft
+ * references so it never stops the JVM from reclaiming memory.
+ * 
+ * @author Robert Haines
+ * 
+ */
+final class WorkflowLoader {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The workflow name that means "read it from standard input".
+	 */
+	static final String STDIN = "-";
+
+	// files bigger than this are memory mapped rather than read
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+
+	private static final int MIN_STREAM_BUFFER = 8 * 1024;
+
+	private static final ConcurrentMap<String, SoftReference<String>> cache = new ConcurrentHashMap<String, SoftReference<String>>();
+
+	private WorkflowLoader() {
+	}
+
+	static String load(File file) throws IOException {
+		File canonical = file.getCanonicalFile();
+		if (!canonical.isFile()) {
+			throw new IOException("No such file '" + file + "'");
+		}
+
+		String key = canonical.getPath() + '\0' + canonical.length() + '\0'
+				+ canonical.lastModified();
+		SoftReference<String> ref = cache.get(key);
+		String workflow = ref == null ? null : ref.get();
+		if (workflow == null) {
+			workflow = read(canonical);
+			cache.put(key, new SoftReference<String>(workflow));
+		}
+
+		return workflow;
+	}
+
+	static String read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Workflow '" + file + "' is too big");
+			}
+
+			ByteBuffer bytes;
+			if (size > MAP_THRESHOLD) {
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				bytes = ByteBuffer.allocate((int) size);
+				while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+					// keep reading
+				}
+				bytes.flip();
+			}
+
+			return UTF8.decode(bytes).toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a workflow from a stream, but only if some of it is already
+	 * waiting to be read, so that a terminal or a pipe that nobody writes to
+	 * is not waited on forever. The stream is not closed.
+	 * 
+	 * @return the workflow, or null if nothing was waiting.
+	 */
+	static String readWaiting(InputStream in) throws IOException {
+		if (in.available() <= 0) {
+			return null;
+		}
+
+		return read(in);
+	}
+
+	/**
+	 * Read a workflow from a stream until it is exhausted. The stream is not
+	 * closed.
+	 */
+	static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(
+				MIN_STREAM_BUFFER, in.available()));
+		RunResources.copy(in, bytes);
+
+		return new String(bytes.toByteArray(), UTF8);
+	}
+
+	static void clearCache() {
+		cache.clear();
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011 The University of Manchester, UK.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the names of The University of Manchester nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission. 
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.org.taverna.server.client.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs LoadTest against its in-process stub server, so that it can be
+ * checked without a real server.
+ * 
+ * @author Robert Haines
+ * 
+ */
+public class LoadTestTest {
+
+	private static final String WORKFLOW = "<workflow "
+			+ "xmlns=\"http://taverna.sf.net/2008/xml/t2flow\">"
+			+ "<dataflow role=\"top\"><name>Stub</name></dataflow>"
+			+ "</workflow>";
+
+	private File workflow;
+
+	@Before
+	public void setUp() throws IOException {
+		workflow = File.createTempFile("workflow", ".t2flow");
+		OutputStream out = new FileOutputStream(workflow);
+		try {
+			out.write(WORKFLOW.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		// exit by throwing rather than ending the JVM
+		ConsoleApp.setEmbedded(true);
+	}
+
+	@After
+	public void tearDown() {
+		ConsoleApp.setEmbedded(false);
+		workflow.delete();
+	}
+
+	@Test
+	public void concurrentRunsAgainstStub() {
+		LoadTest test = run("--concurrency", "4");
+
+		assertTrue("no runs completed", test.getCompleted() > 0);
+		assertEquals(0, test.getFailed());
+	}
+
+	@Test
+	public void runsAtRateAgainstStub() {
+		LoadTest test = run("--rate", "20", "--max-in-flight", "10");
+
+		assertTrue("no runs completed", test.getCompleted() > 0);
+		assertEquals(0, test.getFailed());
+	}
+
+	@Test(expected = ConsoleApp.Exit.class)
+	public void rejectsRateTooHighToSchedule() {
+		run("--rate", "1e10");
+	}
+
+	private LoadTest run(String... options) {
+		String[] common = { "--stub", "--stub-run-time", "100ms",
+				"--duration", "2s", "-w", workflow.getPath() };
+		String[] args = new String[common.length + options.length];
+		System.arraycopy(common, 0, args, 0, common.length);
+		System.arraycopy(options, 0, args, common.length, options.length);
+
+		LoadTest test = new LoadTest();
+		test.run(test.parseOpts(test.registerOptions(), args));
+
+		return test;
+	}
+}